@@ -1,13 +1,34 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
 
 /**
  * Implementation of (Gbest-guided) Artificial Bee Colony algorithm.
@@ -38,14 +59,40 @@ public class ABColony {
      */
     public static final int MAX_CYCLE = 500;
 
+    /**
+     * The number of colonies, each writing its own weights file. When ISLANDS is set they run at the same time and
+     * exchange their best food sources every MIGRATION_INTERVAL cycles, otherwise one after the other.
+     */
+    public static final int NUM_COLONIES = 5;
+    private static final boolean ISLANDS = true;
+    public static final int MIGRATION_INTERVAL = 10;
+
     /**
      * File storage related parameters.
      * Set these parameters to desirable values BEFORE running the algorithm should you need to.
+     * INITIAL_WEIGHTS_FILE seeds the food sources, see readFoodSources() for its format.
      */
     public static String INITIAL_WEIGHTS_FILE;
 
     public static String WEIGHTS_RESULT_FILE = "weights.out";
 
+    /**
+     * The state of the run is saved in CHECKPOINT_FILE every CHECKPOINT_INTERVAL cycles, and when the walltime is
+     * about to run out. A run started while the file exists resumes from it. Set to null to turn checkpoints off.
+     */
+    public static String CHECKPOINT_FILE = "abcolony.checkpoint";
+    public static final int CHECKPOINT_INTERVAL = 10;
+
+    /**
+     * Walltime of the job, as requested in tetris.pbs. The run stops once the next cycle may not finish
+     * WALLTIME_MARGIN before it, taking twice the longest cycle so far.
+     */
+    public static long WALLTIME_SECONDS = 24 * 60 * 60;
+    private static final long WALLTIME_MARGIN = TimeUnit.MINUTES.toNanos(10);
+    private static final long START_TIME = System.nanoTime();
+
+    private static final int CHECKPOINT_MAGIC = 0xABC0C4E3;
+
     /* Problem specific variables */
 
     private static final int NUM_PARAMETERS = StateSimulator2.NUM_FEATURES;
@@ -76,60 +123,465 @@ public class ABColony {
     /* For parallel computing */
     private static final boolean RUN_CONCURRENT = true;
     private final ExecutorService es;
+    private final CompletionService<Double> completion;
     private final int NUM_THREADS;
-    private ArrayList<PlayGame> tasks;
+
+    /**
+     * When set, the cycles run as one steady stream of candidates instead of phases separated by barriers,
+     * see runAsynchronous()
+     */
+    private static final boolean ASYNCHRONOUS = false;
+
+    /**
+     * of each food source, in asynchronous mode: bumped whenever it is abandoned or replaced by a migrant, so that
+     * late results for it can be recognised, and whether a scout is out to replace it
+     */
+    private int[] foodGeneration = new int[NUM_FOOD_SOURCE];
+    private boolean[] scouting = new boolean[NUM_FOOD_SOURCE];
+
+    /* time spent in each phase, and time the cores spent playing games in it, to report their utilization */
+    private static final int PHASE_EMPLOYED = 0;
+    private static final int PHASE_ONLOOKER = 1;
+    private static final String[] PHASE_NAMES = {"employed", "onlooker"};
+    private long[] phaseTime = new long[PHASE_NAMES.length];
+    private long[] phaseBusyTime = new long[PHASE_NAMES.length];
 
     /* stores the index of parameter being changed for playing a game for each food source. */
     private int[] parameterChanged = new int[NUM_FOOD_SOURCE];
     private double[] parameterOldValue = new double[NUM_FOOD_SOURCE];
     private Random rand = new Random();
 
+    /**
+     * When set, all the candidates of a cycle are scored on the same sequences of pieces (common random numbers),
+     * so that their fitness values differ because of their weights rather than their luck.
+     */
+    private static final boolean COMMON_RANDOM_NUMBERS = true;
+
+    /**
+     * seed of the piece sequences of the current cycle, see COMMON_RANDOM_NUMBERS
+     */
+    private long gameSeed;
+
+    /**
+     * When set, mutated food sources stop playing as soon as they are very likely worse than the food source they
+     * would replace, see PlayGame.setIncumbentFitness()
+     */
+    private static final boolean RACING = true;
+
+    /**
+     * When set, each mutated food source plays as many games as its comparisons with the food source it would
+     * replace and with the global best need, instead of racing, see PlayGame.setThresholds()
+     */
+    private static final boolean ADAPTIVE_GAMES = true;
+
+    /**
+     * When set, the global best plays RESAMPLE_GAMES more games every cycle, and its fitness becomes the median of
+     * all the games it played since it became the global best, so that a lucky median does not stay the one to
+     * beat. Games of its own pieces are not biased by its selection, unlike those that made it the global best.
+     */
+    private static final boolean RESAMPLE_GLOBAL_BEST = true;
+    private static final int RESAMPLE_GAMES = 10;
+    private final List<Double> globalBestScores = new ArrayList<>();
+
+    /**
+     * When set, weights that were already scored (after normalizing and rounding, see FitnessCache) reuse their
+     * fitness instead of playing the games again
+     */
+    private static final boolean MEMOIZE_FITNESS = true;
+    private static final int FITNESS_CACHE_CAPACITY = 1 << 16;
+    private final FitnessCache fitnessCache = new FitnessCache(FITNESS_CACHE_CAPACITY);
+
+    /**
+     * When set, weights that pick the same moves as already scored ones on a corpus of NUM_PROBE_POSITIONS
+     * positions reuse their fitness, see PolicyFingerprint
+     */
+    private static final boolean DEDUP_POLICIES = true;
+    private static final int NUM_PROBE_POSITIONS = 2000;
+    private static final long PROBE_SEED = 0x5EEDL;
+    private final FitnessCache policyCache = new FitnessCache(FITNESS_CACHE_CAPACITY);
+    private static final PolicyFingerprint POLICY_FINGERPRINT = DEDUP_POLICIES
+            ? new PolicyFingerprint(NUM_PROBE_POSITIONS, PROBE_SEED, PieceSequence.withSZBias(2)) : null;
+
+    /**
+     * games actually played, and the most games the evaluations could have played, see PlayGame.getMaxGames()
+     */
+    private long gamesPlayed;
+    private long gamesScheduled;
+
     private double UPPER = 1.0;
     private double LOWER = -1.0;
     private boolean LIMIT_RANGE = false;
 
-    private ABColony() {
+    /**
+     * spread of the food sources initialized around those of INITIAL_WEIGHTS_FILE, whose weights are normalized
+     */
+    private static final double PERTURBATION = 0.1;
+
+    /**
+     * position of the run: index of the colony among NUM_COLONIES, and next cycle to run, 0 before the food
+     * sources are initialized
+     */
+    private int colonyIndex;
+    private int nextCycle;
+
+    /* end of the last cycle, and the longest cycle so far, to see the walltime coming */
+    private long lastCycleEnd = System.nanoTime();
+    private long longestCycleTime;
+
+    /**
+     * where the islands wait for each other, null for a colony on its own, see runIslands()
+     */
+    private CyclicBarrier migration;
+    private static volatile boolean islandsStopped;
+
+    private ABColony(ExecutorService es, int colonyIndex) {
+        this.es = es;
+        this.colonyIndex = colonyIndex;
+        NUM_THREADS = RUN_CONCURRENT ? Runtime.getRuntime().availableProcessors() : 1;
+        completion = new ExecutorCompletionService<>(es);
+    }
+
+    /**
+     * @return the threads every colony plays its games on
+     */
+    private static ExecutorService createPool() {
         if (RUN_CONCURRENT) {
-            NUM_THREADS = Runtime.getRuntime().availableProcessors();
-            System.out.println("# processors available = " + NUM_THREADS);
-            es = Executors.newFixedThreadPool(NUM_THREADS);
-            tasks = new ArrayList<>(NUM_FOOD_SOURCE);
-        } else {
-            NUM_THREADS = 1;
-            es = Executors.newSingleThreadExecutor();
-            tasks = new ArrayList<>(1);
+            int numThreads = Runtime.getRuntime().availableProcessors();
+            System.out.println("# processors available = " + numThreads);
+            return Executors.newWorkStealingPool(numThreads);
         }
+        return Executors.newSingleThreadExecutor();
     }
 
     public static void main(String[] args) throws IOException {
-        for (int count = 0; count < 5; count++) {
-            ABColony colony = new ABColony();
-            colony.initializeFoodSources();
-            colony.memorizeBestSource();
-            printResult(colony);
-            PlayGame.setLevel(2);
-            for (int i = 1; i < MAX_CYCLE; i++) {
-                colony.sendEmployedBees();
-                colony.sendOnlookerBees();
-                colony.memorizeBestSource();
-                colony.sendScoutBees();
-                if (i % 10 == 0) {
-                    System.out.println("Iteration #" + i);
-                    printResult(colony);
-                }
-            }
+        PlayGame.setLevel(2);
+        ExecutorService es = createPool();
+        ABColony[] resumed = readCheckpoint(es);
+        boolean stopped = ISLANDS ? runIslands(es, resumed) : runOneByOne(es, resumed);
+        es.shutdown();
+        if (stopped) {
+            System.out.println("Walltime almost over. Run again to resume from " + CHECKPOINT_FILE);
+        } else if (CHECKPOINT_FILE != null) {
+            Files.deleteIfExists(Paths.get(CHECKPOINT_FILE));
+        }
+        System.exit(0);
+    }
 
-            colony.es.shutdown();
+    /**
+     * runs the NUM_COLONIES colonies one after the other
+     * @param resumed the colony of the checkpoint, null to start from the first colony
+     * @return true if they stopped before the end because the walltime is almost over
+     */
+    private static boolean runOneByOne(ExecutorService es, ABColony[] resumed) throws IOException {
+        int firstColony = resumed == null ? 0 : resumed[0].colonyIndex;
+        for (int count = firstColony; count < NUM_COLONIES; count++) {
+            ABColony colony = resumed != null && count == firstColony ? resumed[0] : new ABColony(es, count);
+            colony.start();
+            if (colony.run())
+                return true;
 
             if (WEIGHTS_RESULT_FILE != null) {
                 writeOptimalWeightsToFile(colony);
             }
+            if (CHECKPOINT_FILE != null) {
+                // the next colony starts from scratch, without the best or the counters of this one
+                writeCheckpoint(new ABColony[] {new ABColony(es, count + 1)});
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs the NUM_COLONIES colonies at the same time, as islands playing their games on the same threads. Every
+     * MIGRATION_INTERVAL cycles the islands wait for each other, and the best food source of each island replaces
+     * the worst one of the next island if it is better (ring topology), see migrate(). The islands are
+     * checkpointed together then, at the migrations that fall on a multiple of CHECKPOINT_INTERVAL.
+     * @param resumed the islands of the checkpoint, null to start new ones
+     * @return true if they stopped before the end because the walltime is almost over
+     */
+    private static boolean runIslands(ExecutorService es, ABColony[] resumed) throws IOException {
+        final ABColony[] islands = resumed != null ? resumed : new ABColony[NUM_COLONIES];
+        if (resumed == null) {
+            for (int i = 0; i < NUM_COLONIES; i++) {
+                islands[i] = new ABColony(es, i);
+            }
+        }
+
+        final CyclicBarrier migration = new CyclicBarrier(NUM_COLONIES, new Runnable() {
+            @Override
+            public void run() {
+                migrate(islands);
+                islandsStopped = islands[0].checkpoint(islands);
+            }
+        });
+        Thread[] threads = new Thread[NUM_COLONIES];
+        for (final ABColony island : islands) {
+            island.migration = migration;
+            threads[island.colonyIndex] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    island.start();
+                    island.run();
+                }
+            }, "island-" + island.colonyIndex);
+            threads[island.colonyIndex].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        if (islandsStopped)
+            return true;
+
+        if (WEIGHTS_RESULT_FILE != null) {
+            for (ABColony island : islands) {
+                writeOptimalWeightsToFile(island);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * ring migration: the best food source of each island replaces the worst one of the next island, if it is
+     * better. The islands must all be waiting. In asynchronous mode, a food source being scouted is left to its
+     * scout, and the candidates still running from the one replaced are dropped when they finish.
+     */
+    private static void migrate(ABColony[] islands) {
+        double[][] migrants = new double[islands.length][];
+        double[] migrantFitness = new double[islands.length];
+        for (int i = 0; i < islands.length; i++) {
+            int best = 0;
+            for (int j = 1; j < NUM_FOOD_SOURCE; j++) {
+                if (islands[i].fitness[j] > islands[i].fitness[best])
+                    best = j;
+            }
+            migrants[i] = islands[i].foods[best].clone();
+            migrantFitness[i] = islands[i].fitness[best];
+        }
+
+        for (int i = 0; i < islands.length; i++) {
+            ABColony island = islands[(i + 1) % islands.length];
+            int worst = -1;
+            for (int j = 0; j < NUM_FOOD_SOURCE; j++) {
+                if (!island.scouting[j] && (worst == -1 || island.fitness[j] < island.fitness[worst]))
+                    worst = j;
+            }
+            if (worst == -1 || migrantFitness[i] <= island.fitness[worst])
+                continue;
+            System.arraycopy(migrants[i], 0, island.foods[worst], 0, NUM_PARAMETERS);
+            island.fitness[worst] = migrantFitness[i];
+            island.trialCounts[worst] = 0;
+            island.foodGeneration[worst]++;
+            if (island.foodSourceToAbandon == worst)
+                island.foodSourceToAbandon = -1;
+            island.memorizeBestSource();
+        }
+    }
+
+    /**
+     * initializes the food sources, unless the colony was resumed from a checkpoint
+     */
+    private void start() {
+        if (nextCycle == 0) {
+            drawGameSeed();
+            initializeFoodSources();
+            memorizeBestSource();
+            nextCycle = 1;
+        } else {
+            System.out.println("Resuming colony #" + colonyIndex + " at iteration #" + nextCycle);
+        }
+        if (ISLANDS)
+            printProgress(nextCycle - 1);
+        else
+            printResult(this);
+        lastCycleEnd = System.nanoTime();
+    }
+
+    /**
+     * @return true if the cycles stopped before MAX_CYCLE because the walltime is almost over
+     */
+    private boolean run() {
+        if (ASYNCHRONOUS)
+            return runAsynchronous();
+        return runSynchronous();
+    }
+
+    /**
+     * the cycles of the algorithm, from nextCycle on
+     * @return true if they stopped before MAX_CYCLE because the walltime is almost over, see endOfCycle()
+     */
+    private boolean runSynchronous() {
+        while (nextCycle < MAX_CYCLE) {
+            int i = nextCycle;
+            drawGameSeed();
+            sendEmployedBees();
+            sendOnlookerBees();
+            memorizeBestSource();
+            sendScoutBees();
+            resampleGlobalBest();
+            if (i % 10 == 0) {
+                printProgress(i);
+            }
+            nextCycle = i + 1;
+            if (endOfCycle())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called at the end of every cycle, nextCycle being the next one. A colony on its own checkpoints there, an
+     * island waits for the others every MIGRATION_INTERVAL cycles, see runIslands().
+     * @return true if the run has to stop there
+     */
+    private boolean endOfCycle() {
+        if (migration == null)
+            return checkpoint(new ABColony[] {this});
+        if (nextCycle % MIGRATION_INTERVAL != 0 || nextCycle >= MAX_CYCLE)
+            return false;
+        try {
+            migration.await();
+        } catch (InterruptedException | BrokenBarrierException e) {
+            e.printStackTrace();
+            return true;
+        }
+        return islandsStopped;
+    }
+
+    /**
+     * Writes a checkpoint of colonies every CHECKPOINT_INTERVAL cycles of this colony, and when the time since
+     * the last call, twice over, may not fit before the walltime is over.
+     * @return true if the run has to stop there
+     */
+    private boolean checkpoint(ABColony[] colonies) {
+        if (CHECKPOINT_FILE == null)
+            return false;
+        long now = System.nanoTime();
+        longestCycleTime = Math.max(longestCycleTime, now - lastCycleEnd);
+        lastCycleEnd = now;
+        boolean stop = now + 2 * longestCycleTime + WALLTIME_MARGIN - START_TIME
+                > TimeUnit.SECONDS.toNanos(WALLTIME_SECONDS);
+        if (stop || nextCycle % CHECKPOINT_INTERVAL == 0)
+            writeCheckpoint(colonies);
+        return stop;
+    }
+
+    /**
+     * Saves the state of the colonies in CHECKPOINT_FILE, through a temporary file so that a job killed meanwhile
+     * leaves the previous checkpoint whole. The random generators are reseeded with the seeds saved, so that a
+     * resumed run draws the same numbers as this one. The fitness caches are not saved.
+     */
+    private static void writeCheckpoint(ABColony[] colonies) {
+        File tmp = new File(CHECKPOINT_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(NUM_FOOD_SOURCE);
+            out.writeInt(NUM_PARAMETERS);
+            out.writeInt(colonies.length);
+            for (ABColony colony : colonies) {
+                colony.writeState(out);
+            }
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), Paths.get(CHECKPOINT_FILE), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the colonies saved in CHECKPOINT_FILE, see writeCheckpoint(), or null if there is none
+     */
+    private static ABColony[] readCheckpoint(ExecutorService es) throws IOException {
+        if (CHECKPOINT_FILE == null || !new File(CHECKPOINT_FILE).exists())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(CHECKPOINT_FILE)))) {
+            if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != NUM_FOOD_SOURCE
+                    || in.readInt() != NUM_PARAMETERS || in.readInt() != (ISLANDS ? NUM_COLONIES : 1)) {
+                System.out.println("ABColony: " + CHECKPOINT_FILE + " is not a checkpoint of this run. Exiting");
+                System.exit(-1);
+            }
+            ABColony[] colonies = new ABColony[ISLANDS ? NUM_COLONIES : 1];
+            for (int i = 0; i < colonies.length; i++) {
+                colonies[i] = new ABColony(es, 0);
+                colonies[i].readState(in);
+            }
+            return colonies;
+        }
+    }
+
+    /**
+     * writes the position of the colony in the run, the seed of its random generator, its food sources and the
+     * games of its global best
+     */
+    private void writeState(DataOutputStream out) throws IOException {
+        long seed = rand.nextLong();
+        rand.setSeed(seed);
+        out.writeInt(colonyIndex);
+        out.writeInt(nextCycle);
+        out.writeLong(seed);
+        for (double[] food : foods) {
+            writeDoubles(out, food);
+        }
+        writeDoubles(out, fitness);
+        writeDoubles(out, trialCounts);
+        out.writeInt(foodSourceToAbandon);
+        out.writeDouble(globalBestFitness);
+        writeDoubles(out, globalBestParameters);
+        out.writeLong(gamesPlayed);
+        out.writeLong(gamesScheduled);
+        out.writeInt(globalBestScores.size());
+        for (double score : globalBestScores) {
+            out.writeDouble(score);
+        }
+    }
+
+    private void readState(DataInputStream in) throws IOException {
+        colonyIndex = in.readInt();
+        nextCycle = in.readInt();
+        rand.setSeed(in.readLong());
+        for (double[] food : foods) {
+            readDoubles(in, food);
+        }
+        readDoubles(in, fitness);
+        readDoubles(in, trialCounts);
+        foodSourceToAbandon = in.readInt();
+        globalBestFitness = in.readDouble();
+        readDoubles(in, globalBestParameters);
+        gamesPlayed = in.readLong();
+        gamesScheduled = in.readLong();
+        globalBestScores.clear();
+        for (int i = in.readInt(); i > 0; i--) {
+            globalBestScores.add(in.readDouble());
+        }
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    private static void readDoubles(DataInputStream in, double[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readDouble();
         }
-        System.exit(0);
     }
 
     private static void writeOptimalWeightsToFile(ABColony colony) throws IOException {
-        BufferedWriter bw = new BufferedWriter(new FileWriter(System.currentTimeMillis() + WEIGHTS_RESULT_FILE));
+        // the islands finish together, so their files would often get the same time
+        String prefix = ISLANDS ? System.currentTimeMillis() + "-" + colony.colonyIndex : "" + System.currentTimeMillis();
+        BufferedWriter bw = new BufferedWriter(new FileWriter(prefix + WEIGHTS_RESULT_FILE));
         bw.write(colony.globalBestFitness + "\n");
         for (double weight: colony.globalBestParameters) {
             bw.write(Double.toString(weight) + " ");
@@ -139,24 +591,86 @@ public class ABColony {
         bw.close();
     }
 
-    private static void printResult(ABColony bee) {
+    /**
+     * prints the iteration and the result so far in one piece, even when islands print at the same time
+     */
+    private void printProgress(int iteration) {
+        synchronized (ABColony.class) {
+            System.out.println((ISLANDS ? "Colony #" + colonyIndex + ", iteration #" : "Iteration #") + iteration);
+            printResult(this);
+        }
+    }
+
+    private static synchronized void printResult(ABColony bee) {
         double[] weights = bee.globalBestParameters;
         Debug.printBold("optimum = " + bee.globalBestFitness + "\n");
+        System.out.printf("games played = %d of %d\n", bee.gamesPlayed, bee.gamesScheduled);
+        if (MEMOIZE_FITNESS)
+            System.out.printf("fitness cache hit rate = %.1f%% of %d lookups\n", 100 * bee.fitnessCache.getHitRate(),
+                    bee.fitnessCache.getHits() + bee.fitnessCache.getMisses());
+        if (DEDUP_POLICIES)
+            System.out.printf("policy cache hit rate = %.1f%% of %d lookups\n", 100 * bee.policyCache.getHitRate(),
+                    bee.policyCache.getHits() + bee.policyCache.getMisses());
+        for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+            if (bee.phaseTime[phase] > 0)
+                System.out.printf("%s phase: %.1f%% of cores busy\n", PHASE_NAMES[phase],
+                        100.0 * bee.phaseBusyTime[phase] / (bee.phaseTime[phase] * bee.NUM_THREADS));
+        }
         for (double weight : weights) {
             System.out.printf(" %.8f ,", weight);
         }
         System.out.println("\n-----------------------------------------");
     }
 
+    private void drawGameSeed() {
+        gameSeed = rand.nextLong();
+    }
+
+    /**
+     * @return the games to score weights with, on the pieces of the current cycle if COMMON_RANDOM_NUMBERS is set
+     */
+    private PlayGame newPlayGame(double[] weights, int foodIndex, int beeIndex) {
+        PlayGame game;
+        if (COMMON_RANDOM_NUMBERS)
+            game = new PlayGame(weights, foodIndex, beeIndex, gameSeed);
+        else
+            game = new PlayGame(weights, foodIndex, beeIndex);
+        if (MEMOIZE_FITNESS)
+            game.setFitnessCache(fitnessCache);
+        if (DEDUP_POLICIES)
+            game.setPolicyCache(policyCache, POLICY_FINGERPRINT);
+        return game;
+    }
+
+    /**
+     * @return the games to score a mutation of foods[foodIndex] with, as many as its comparisons need if
+     * ADAPTIVE_GAMES is set, or racing against its fitness if RACING is set
+     */
+    private PlayGame newRacingPlayGame(double[] weights, int foodIndex, int beeIndex) {
+        PlayGame game = newPlayGame(weights, foodIndex, beeIndex);
+        if (ADAPTIVE_GAMES)
+            game.setThresholds(fitness[foodIndex], globalBestFitness);
+        else if (RACING)
+            game.setIncumbentFitness(fitness[foodIndex]);
+        return game;
+    }
+
+    private void countGamesPlayed(PlayGame game) {
+        gamesPlayed += game.getGamesPlayed();
+        gamesScheduled += game.getMaxGames();
+    }
+
     /**
      * @param foodSource food source to run the game with
      * @return the average/median score of games played with foodSource
      */
     private double calculateFitness(double[] foodSource) {
-        tasks.clear();
-        tasks.add(new PlayGame(foodSource, 0));
+        // a single evaluation at a time, so its games are split across the cores
+        PlayGame game = newPlayGame(foodSource, 0, 0);
         try {
-            for (Future<Double> future: es.invokeAll(tasks)) return future.get(); // just one thread
+            double fitness = game.callSplit(es);
+            countGamesPlayed(game);
+            return fitness;
         } catch (InterruptedException | ExecutionException e) {
             e.printStackTrace();
         }
@@ -165,19 +679,62 @@ public class ABColony {
 
     private void memorizeBestSource() {
         for (int i = 0; i < NUM_FOOD_SOURCE; i++) {
-            if (fitness[i] > globalBestFitness) {
-                globalBestFitness = fitness[i];
-                System.arraycopy(foods[i], 0, globalBestParameters, 0, NUM_PARAMETERS);
-            }
+            memorizeIfBest(i);
         }
     }
 
-    private void initializeFoodSource(int foodIndex) {
-        // if the global optimum is already set, then use a modification of that
+    private void memorizeIfBest(int foodIndex) {
+        if (fitness[foodIndex] > globalBestFitness) {
+            globalBestFitness = fitness[foodIndex];
+            System.arraycopy(foods[foodIndex], 0, globalBestParameters, 0, NUM_PARAMETERS);
+            globalBestScores.clear();
+        }
+    }
+
+    /**
+     * Plays more games with the global best if RESAMPLE_GLOBAL_BEST is set: as many as a food source the first
+     * time, RESAMPLE_GAMES after. The food sources with the same weights get its new fitness too.
+     */
+    private void resampleGlobalBest() {
+        if (!RESAMPLE_GLOBAL_BEST || globalBestFitness == Double.NEGATIVE_INFINITY)
+            return;
+        PlayGame game = new PlayGame(globalBestParameters, 0, 0, rand.nextLong());
+        if (!globalBestScores.isEmpty())
+            game.setNumGames(RESAMPLE_GAMES);
+        try {
+            game.callSplit(es);
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            return;
+        }
+        gamesPlayed += game.getGamesPlayed();
+        gamesScheduled += game.getGamesPlayed();
+        for (double score : game.getScores()) {
+            globalBestScores.add(score);
+        }
+
+        double[] scores = new double[globalBestScores.size()];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = globalBestScores.get(i);
+        }
+        Arrays.sort(scores);
+        globalBestFitness = scores[scores.length / 2];
+        for (int i = 0; i < NUM_FOOD_SOURCE; i++) {
+            if (Arrays.equals(foods[i], globalBestParameters))
+                fitness[i] = globalBestFitness;
+        }
+    }
+
+    private void randomizeFoodSource(double[] foodSource) {
         for (int j = 0; j < NUM_PARAMETERS; j++) {
-            foods[foodIndex][j] = LOWER + rand.nextDouble() * (UPPER - LOWER);
+            foodSource[j] = LOWER + rand.nextDouble() * (UPPER - LOWER);
         }
-        normalizeVector(foods[foodIndex]);
+        normalizeVector(foodSource);
+    }
+
+    private void initializeFoodSource(int foodIndex) {
+        // if the global optimum is already set, then use a modification of that
+        randomizeFoodSource(foods[foodIndex]);
         // since we only have 1 scout bee, it is ok to use single thread
         fitness[foodIndex] = calculateFitness(foods[foodIndex]);
 
@@ -187,47 +744,193 @@ public class ABColony {
 
     /*initializes all the food sources before optimization */
     private void initializeFoodSources() {
+        int numSeeds = 0;
         if (INITIAL_WEIGHTS_FILE != null)
-            return; //TODO read from the file
-        for (int i = 0; i < NUM_FOOD_SOURCE; i++) {
-            initializeFoodSource(i);
+            numSeeds = readFoodSources(INITIAL_WEIGHTS_FILE);
+        for (int i = numSeeds; i < NUM_FOOD_SOURCE; i++) {
+            if (numSeeds == 0)
+                initializeFoodSource(i);
+            else
+                perturbFoodSource(i, i % numSeeds);
         }
     }
 
-    private void sendEmployedBees() {
-        if (RUN_CONCURRENT) {
-            int foodIndex = 0;
-            while (foodIndex < NUM_FOOD_SOURCE) {
-                tasks.clear();
-                for (int count = 0; count < NUM_THREADS && foodIndex < NUM_FOOD_SOURCE; count++) {
-                    updateWithGBest(foodIndex, foodIndex);
-                    //TODO
-                    normalizeVector(foods_modified[foodIndex]);
-                    tasks.add(new PlayGame(foods_modified[foodIndex], foodIndex, foodIndex));
-                    foodIndex++;
+    /**
+     * Reads the first food sources from a weights file: either weights.txt, one line of comma-separated weights
+     * per food source, or files written by writeOptimalWeightsToFile(), a line with the fitness followed by a
+     * line of space-separated weights, possibly several of them one after the other. Fitness values given in
+     * the file are kept, the other food sources are played.
+     * @return the number of food sources read, at most NUM_FOOD_SOURCE
+     */
+    private int readFoodSources(String fileName) {
+        int numRead = 0;
+        double knownFitness = Double.NaN;
+        try (BufferedReader br = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            while ((line = br.readLine()) != null && numRead < NUM_FOOD_SOURCE) {
+                String[] elements = line.trim().split("[,\\s]+");
+                if (elements[0].isEmpty())
+                    continue;
+                if (elements.length == 1) {
+                    knownFitness = Double.parseDouble(elements[0]);
+                    continue;
                 }
-                try {
-                    List<Future<Double>> results = es.invokeAll(tasks);
-                    for (int i = 0; i < results.size(); i++) {
-                        double newFitness = results.get(i).get();
-                        int index = tasks.get(i).foodIndex;
-
-                        if (newFitness > fitness[index]) {
-                            fitness[index] = newFitness;
-                            trialCounts[index] = 0;
-                            // update the entire array
-                            System.arraycopy(foods_modified[index], 0, foods[index], 0, NUM_PARAMETERS);
-                        } else {
-                            trialCounts[index]++;
-                            if (trialCounts[index] >= LIMIT)
-                                foodSourceToAbandon = index;
+                if (elements.length != NUM_PARAMETERS) {
+                    System.out.println("ABColony: skipping \"" + line + "\" in " + fileName);
+                    continue;
+                }
+                for (int j = 0; j < NUM_PARAMETERS; j++) {
+                    foods[numRead][j] = Double.parseDouble(elements[j]);
+                }
+                normalizeVector(foods[numRead]);
+                fitness[numRead] = Double.isNaN(knownFitness) ? calculateFitness(foods[numRead]) : knownFitness;
+                trialCounts[numRead] = 0;
+                knownFitness = Double.NaN;
+                numRead++;
+            }
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+        }
+        System.out.printf("%d food sources read from %s\n", numRead, fileName);
+        return numRead;
+    }
+
+    /**
+     * initializes foods[foodIndex] close to foods[seedIndex], moving every parameter by a normal deviate of
+     * standard deviation PERTURBATION
+     */
+    private void perturbFoodSource(int foodIndex, int seedIndex) {
+        for (int j = 0; j < NUM_PARAMETERS; j++) {
+            foods[foodIndex][j] = foods[seedIndex][j] + rand.nextGaussian() * PERTURBATION;
+        }
+        normalizeVector(foods[foodIndex]);
+        fitness[foodIndex] = calculateFitness(foods[foodIndex]);
+        trialCounts[foodIndex] = 0;
+    }
+
+    private void sendEmployedBees() {
+        runPhase(PHASE_EMPLOYED, new IntFunction<PlayGame>() {
+            @Override
+            public PlayGame apply(int foodIndex) {
+                updateWithGBest(foodIndex, foodIndex);
+                //TODO
+                normalizeVector(foods_modified[foodIndex]);
+                return newRacingPlayGame(foods_modified[foodIndex], foodIndex, foodIndex);
+            }
+        });
+    }
+
+    /**
+     * Steady-state variant of the cycles of main(), without barriers between the phases. Whenever a worker is free,
+     * it gets the next candidate, alternately a mutation of the next food source in turn (employed bee) and of one
+     * picked by fitness (onlooker bee), made with the global best as it is at that moment. Each result is applied
+     * as soon as it comes, and a food source is scouted as soon as its trials reach LIMIT, while the other
+     * candidates keep running. Evaluates as many candidates as MAX_CYCLE cycles would.
+     * <p>
+     * Each running candidate keeps its weights in its own row of foods_modified, given by its beeIndex. A food
+     * source being scouted is not mutated, and the results of candidates made from it before it was abandoned
+     * are dropped.
+     * <p>
+     * Starts from nextCycle, and checkpoints every time a cycle's worth of candidates has been submitted. The
+     * candidates still running then are not saved.
+     * @return true if it stopped before MAX_CYCLE because the walltime is almost over, see checkpoint()
+     */
+    private boolean runAsynchronous() {
+        int candidatesPerCycle = 2 * NUM_FOOD_SOURCE;
+        int maxCandidates = (MAX_CYCLE - 1) * candidatesPerCycle;
+        int maxRunning = Math.min(NUM_THREADS, NUM_FOOD_SOURCE);
+
+        int[] freeSlots = new int[NUM_FOOD_SOURCE];
+        int numFreeSlots = NUM_FOOD_SOURCE;
+        for (int slot = 0; slot < NUM_FOOD_SOURCE; slot++) {
+            freeSlots[slot] = slot;
+        }
+        int[] slotGeneration = new int[NUM_FOOD_SOURCE];
+        boolean[] slotIsScout = new boolean[NUM_FOOD_SOURCE];
+
+        Map<Future<Double>, PlayGame> running = new HashMap<>();
+        int firstSubmitted = (nextCycle - 1) * candidatesPerCycle;
+        int submitted = firstSubmitted;
+        int nextEmployed = 0;
+        long startTime = System.nanoTime();
+        while (submitted < maxCandidates || !running.isEmpty()) {
+            while (submitted < maxCandidates && running.size() < maxRunning) {
+                if (submitted % candidatesPerCycle == 0) {
+                    int cycle = submitted / candidatesPerCycle;
+                    if (submitted > firstSubmitted) {
+                        nextCycle = cycle + 1;
+                        if (endOfCycle()) {
+                            phaseTime[PHASE_EMPLOYED] = System.nanoTime() - startTime;
+                            return true;
                         }
                     }
-                } catch (InterruptedException | ExecutionException e) {
-                    e.printStackTrace();
+                    drawGameSeed();
+                    resampleGlobalBest();
+                    if (cycle > 0 && cycle % 10 == 0) {
+                        phaseTime[PHASE_EMPLOYED] = System.nanoTime() - startTime;
+                        printProgress(cycle);
+                    }
+                }
+
+                int foodIndex = submitted % 2 == 1 ? selectFoodSource() : -1;
+                if (foodIndex == -1 || scouting[foodIndex]) {
+                    do {
+                        foodIndex = nextEmployed;
+                        nextEmployed = (nextEmployed + 1) % NUM_FOOD_SOURCE;
+                    } while (scouting[foodIndex]);
+                }
+
+                int slot = freeSlots[--numFreeSlots];
+                slotGeneration[slot] = foodGeneration[foodIndex];
+                slotIsScout[slot] = false;
+                updateWithGBest(foodIndex, slot);
+                normalizeVector(foods_modified[slot]);
+                PlayGame game = newRacingPlayGame(foods_modified[slot], foodIndex, slot);
+                running.put(completion.submit(game), game);
+                submitted++;
+            }
+
+            try {
+                Future<Double> result = completion.take();
+                PlayGame game = running.remove(result);
+                double newFitness = result.get();
+                int foodIndex = game.foodIndex;
+                int slot = game.beeIndex;
+                freeSlots[numFreeSlots++] = slot;
+                countGamesPlayed(game);
+                phaseBusyTime[PHASE_EMPLOYED] += game.getRunningTime();
+
+                if (slotIsScout[slot]) {
+                    // the new food source replaces the abandoned one whatever its fitness
+                    System.arraycopy(foods_modified[slot], 0, foods[foodIndex], 0, NUM_PARAMETERS);
+                    fitness[foodIndex] = newFitness;
+                    trialCounts[foodIndex] = 0;
+                    scouting[foodIndex] = false;
+                } else if (slotGeneration[slot] == foodGeneration[foodIndex]) {
+                    applyResult(foodIndex, slot, newFitness);
+                } else {
+                    continue;
+                }
+
+                memorizeIfBest(foodIndex);
+
+                if (!scouting[foodIndex] && trialCounts[foodIndex] >= LIMIT) {
+                    scouting[foodIndex] = true;
+                    foodGeneration[foodIndex]++;
+                    foodSourceToAbandon = -1;
+                    int scoutSlot = freeSlots[--numFreeSlots];
+                    slotIsScout[scoutSlot] = true;
+                    randomizeFoodSource(foods_modified[scoutSlot]);
+                    PlayGame scout = newPlayGame(foods_modified[scoutSlot], foodIndex, scoutSlot);
+                    running.put(completion.submit(scout), scout);
                 }
-            } // end while
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+            }
         }
+        phaseTime[PHASE_EMPLOYED] = System.nanoTime() - startTime;
+        nextCycle = MAX_CYCLE;
+        return false;
     }
 
     private void compareFitness(double newFitness, int i) {
@@ -245,40 +948,61 @@ public class ABColony {
     }
 
     private void sendOnlookerBees() {
-        if (RUN_CONCURRENT) {
-            int bee = 0;
-            while (bee < NUM_FOOD_SOURCE) {
-                tasks.clear();
-                for (int count = 0; count < NUM_THREADS && bee < NUM_FOOD_SOURCE; count++) {
-                    int foodIndex = selectFoodSource();
-                    updateWithGBest(foodIndex, bee);
-                    //TODO
-                    normalizeVector(foods_modified[bee]);
-                    tasks.add(new PlayGame(foods_modified[bee], foodIndex, bee));
-                    bee++;
-                }
-                try {
-                    List<Future<Double>> results = es.invokeAll(tasks);
-                    for (int i = 0; i < results.size(); i++) {
-                        double newFitness = results.get(i).get();
-                        int foodIndex = tasks.get(i).foodIndex;
-                        int beeIndex = tasks.get(i).beeIndex;
-
-                        if (newFitness > fitness[foodIndex]) {
-                            fitness[foodIndex] = newFitness;
-                            trialCounts[foodIndex] = 0;
-                            // update the entire array
-                            System.arraycopy(foods_modified[beeIndex], 0, foods[foodIndex], 0, NUM_PARAMETERS);
-                        } else {
-                            trialCounts[foodIndex]++;
-                            if (trialCounts[foodIndex] >= LIMIT)
-                                foodSourceToAbandon = foodIndex;
-                        }
-                    }
-                } catch (InterruptedException | ExecutionException e) {
-                    e.printStackTrace();
-                }
-            } // end while
+        runPhase(PHASE_ONLOOKER, new IntFunction<PlayGame>() {
+            @Override
+            public PlayGame apply(int bee) {
+                int foodIndex = selectFoodSource();
+                updateWithGBest(foodIndex, bee);
+                //TODO
+                normalizeVector(foods_modified[bee]);
+                return newRacingPlayGame(foods_modified[bee], foodIndex, bee);
+            }
+        });
+    }
+
+    /**
+     * Evaluates one candidate per bee, keeping NUM_THREADS of them running at all times: as soon as one finishes,
+     * its result is applied and the next candidate is created, from the food sources as they are now. Game lengths
+     * vary widely, so waiting for a whole batch would leave most cores idle behind its longest game.
+     * @param phase PHASE_EMPLOYED or PHASE_ONLOOKER, to record the utilization of the cores
+     * @param nextCandidate creates the games of the candidate of a bee, whose weights are in foods_modified[bee]
+     */
+    private void runPhase(int phase, IntFunction<PlayGame> nextCandidate) {
+        long startTime = System.nanoTime();
+        Map<Future<Double>, PlayGame> running = new HashMap<>();
+        int bee = 0;
+        while (bee < NUM_FOOD_SOURCE || !running.isEmpty()) {
+            while (running.size() < NUM_THREADS && bee < NUM_FOOD_SOURCE) {
+                PlayGame game = nextCandidate.apply(bee);
+                running.put(completion.submit(game), game);
+                bee++;
+            }
+            try {
+                Future<Double> result = completion.take();
+                PlayGame game = running.remove(result);
+                countGamesPlayed(game);
+                phaseBusyTime[phase] += game.getRunningTime();
+                applyResult(game.foodIndex, game.beeIndex, result.get());
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        phaseTime[phase] += System.nanoTime() - startTime;
+    }
+
+    /**
+     * greedy selection between foods[foodIndex] and the candidate of a bee, in foods_modified[beeIndex]
+     */
+    private void applyResult(int foodIndex, int beeIndex, double newFitness) {
+        if (newFitness > fitness[foodIndex]) {
+            fitness[foodIndex] = newFitness;
+            trialCounts[foodIndex] = 0;
+            // update the entire array
+            System.arraycopy(foods_modified[beeIndex], 0, foods[foodIndex], 0, NUM_PARAMETERS);
+        } else {
+            trialCounts[foodIndex]++;
+            if (trialCounts[foodIndex] >= LIMIT)
+                foodSourceToAbandon = foodIndex;
         }
     }
 
@@ -0,0 +1,223 @@
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Covariance matrix adaptation evolution strategy, (mu/mu_w, lambda)-CMA-ES with the default parameters of Hansen,
+ * The CMA Evolution Strategy: A Tutorial. The weights are drawn from a multivariate normal distribution whose mean,
+ * covariance matrix and step size are adapted to the best of them. The matrix has only NUM_PARAMETERS rows, so it
+ * is decomposed with the Jacobi eigenvalue method.
+ */
+public class CMAES implements Optimizer {
+    private static final int N = StateSimulator2.NUM_FEATURES;
+
+    /**
+     * lambda, the number of weights scored per generation, and mu, the number of them the distribution is fitted to
+     */
+    public static final int POPULATION_SIZE = 4 + (int) (3 * Math.log(N));
+    private static final int MU = POPULATION_SIZE / 2;
+
+    private static final double INITIAL_SIGMA = 0.3;
+
+    private Random rand = new Random();
+
+    @Override
+    public void optimize(FitnessEvaluator evaluator, long maxEvaluations) {
+        // recombination weights and the learning rates they give
+        double[] w = new double[MU];
+        double sumW = 0;
+        double sumW2 = 0;
+        for (int i = 0; i < MU; i++) {
+            w[i] = Math.log(MU + 0.5) - Math.log(i + 1);
+            sumW += w[i];
+        }
+        for (int i = 0; i < MU; i++) {
+            w[i] /= sumW;
+            sumW2 += w[i] * w[i];
+        }
+        double mueff = 1 / sumW2;
+        double cc = (4 + mueff / N) / (N + 4 + 2 * mueff / N);
+        double cs = (mueff + 2) / (N + mueff + 5);
+        double c1 = 2 / ((N + 1.3) * (N + 1.3) + mueff);
+        double cmu = Math.min(1 - c1, 2 * (mueff - 2 + 1 / mueff) / ((N + 2) * (N + 2) + mueff));
+        double damps = 1 + 2 * Math.max(0, Math.sqrt((mueff - 1) / (N + 1)) - 1) + cs;
+        double chiN = Math.sqrt(N) * (1 - 1.0 / (4 * N) + 1.0 / (21 * N * N));
+
+        double[] xmean = new double[N];
+        for (int j = 0; j < N; j++) {
+            xmean[j] = rand.nextDouble() * 2 - 1;
+        }
+        FitnessEvaluator.normalizeVector(xmean);
+        double sigma = INITIAL_SIGMA;
+        double[] pc = new double[N];
+        double[] ps = new double[N];
+        double[][] B = identity();
+        double[] D = new double[N];
+        Arrays.fill(D, 1);
+        double[][] C = identity();
+        double[][] invsqrtC = identity();
+        long eigenEvaluations = 0;
+        long numEvaluations = 0;
+
+        double[][] population = new double[POPULATION_SIZE][N];
+        double[] xold = new double[N];
+        double[] y = new double[N];
+        Integer[] ranks = new Integer[POPULATION_SIZE];
+
+        for (int generation = 1; evaluator.getEvaluations() + POPULATION_SIZE <= maxEvaluations; generation++) {
+            // x = m + sigma * B * D * z
+            for (double[] x : population) {
+                for (int j = 0; j < N; j++) {
+                    y[j] = D[j] * rand.nextGaussian();
+                }
+                for (int i = 0; i < N; i++) {
+                    double sum = 0;
+                    for (int j = 0; j < N; j++) {
+                        sum += B[i][j] * y[j];
+                    }
+                    x[i] = xmean[i] + sigma * sum;
+                }
+            }
+            final double[] fitness = evaluator.evaluate(population);
+            numEvaluations += POPULATION_SIZE;
+            for (int i = 0; i < POPULATION_SIZE; i++) {
+                ranks[i] = i;
+            }
+            Arrays.sort(ranks, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Double.compare(fitness[b], fitness[a]);
+                }
+            });
+
+            System.arraycopy(xmean, 0, xold, 0, N);
+            for (int j = 0; j < N; j++) {
+                double sum = 0;
+                for (int k = 0; k < MU; k++) {
+                    sum += w[k] * population[ranks[k]][j];
+                }
+                xmean[j] = sum;
+            }
+
+            // evolution paths
+            double psNorm = 0;
+            for (int i = 0; i < N; i++) {
+                double sum = 0;
+                for (int j = 0; j < N; j++) {
+                    sum += invsqrtC[i][j] * (xmean[j] - xold[j]) / sigma;
+                }
+                ps[i] = (1 - cs) * ps[i] + Math.sqrt(cs * (2 - cs) * mueff) * sum;
+                psNorm += ps[i] * ps[i];
+            }
+            psNorm = Math.sqrt(psNorm);
+            boolean hsig = psNorm / Math.sqrt(1 - Math.pow(1 - cs, 2.0 * numEvaluations / POPULATION_SIZE)) / chiN
+                    < 1.4 + 2.0 / (N + 1);
+            for (int i = 0; i < N; i++) {
+                pc[i] = (1 - cc) * pc[i] + (hsig ? Math.sqrt(cc * (2 - cc) * mueff) * (xmean[i] - xold[i]) / sigma : 0);
+            }
+
+            // rank-one and rank-mu updates of the covariance matrix
+            for (int i = 0; i < N; i++) {
+                for (int j = 0; j <= i; j++) {
+                    double rankMu = 0;
+                    for (int k = 0; k < MU; k++) {
+                        double[] x = population[ranks[k]];
+                        rankMu += w[k] * (x[i] - xold[i]) * (x[j] - xold[j]) / (sigma * sigma);
+                    }
+                    C[i][j] = (1 - c1 - cmu) * C[i][j]
+                            + c1 * (pc[i] * pc[j] + (hsig ? 0 : cc * (2 - cc) * C[i][j]))
+                            + cmu * rankMu;
+                    C[j][i] = C[i][j];
+                }
+            }
+            sigma *= Math.exp((cs / damps) * (psNorm / chiN - 1));
+
+            if (numEvaluations - eigenEvaluations > POPULATION_SIZE / (c1 + cmu) / N / 10) {
+                eigenEvaluations = numEvaluations;
+                eigen(C, B, D);
+                for (int j = 0; j < N; j++) {
+                    D[j] = Math.sqrt(Math.max(D[j], 0));
+                }
+                for (int i = 0; i < N; i++) {
+                    for (int j = 0; j < N; j++) {
+                        double sum = 0;
+                        for (int k = 0; k < N; k++) {
+                            sum += B[i][k] * B[j][k] / D[k];
+                        }
+                        invsqrtC[i][j] = sum;
+                    }
+                }
+            }
+
+            if (generation % 10 == 0)
+                evaluator.printProgress("Generation #" + generation + ", sigma = " + sigma);
+        }
+    }
+
+    private static double[][] identity() {
+        double[][] matrix = new double[N][N];
+        for (int i = 0; i < N; i++) {
+            matrix[i][i] = 1;
+        }
+        return matrix;
+    }
+
+    /**
+     * cyclic Jacobi eigenvalue method for symmetric matrices
+     * @param matrix left untouched
+     * @param vectors set to the eigenvectors, one per column
+     * @param values set to the eigenvalues, in the order of the columns of vectors
+     */
+    static void eigen(double[][] matrix, double[][] vectors, double[] values) {
+        double[][] a = new double[N][];
+        for (int i = 0; i < N; i++) {
+            a[i] = matrix[i].clone();
+            Arrays.fill(vectors[i], 0);
+            vectors[i][i] = 1;
+        }
+        for (int sweep = 0; sweep < 50; sweep++) {
+            double offDiagonal = 0;
+            for (int p = 0; p < N; p++) {
+                for (int q = p + 1; q < N; q++) {
+                    offDiagonal += a[p][q] * a[p][q];
+                }
+            }
+            if (offDiagonal < 1e-30)
+                break;
+            for (int p = 0; p < N; p++) {
+                for (int q = p + 1; q < N; q++) {
+                    if (a[p][q] == 0)
+                        continue;
+                    // rotation by the angle that zeroes a[p][q]
+                    double theta = (a[q][q] - a[p][p]) / (2 * a[p][q]);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0)
+                        t = 1;
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+                    for (int k = 0; k < N; k++) {
+                        double akp = a[k][p];
+                        double akq = a[k][q];
+                        a[k][p] = c * akp - s * akq;
+                        a[k][q] = s * akp + c * akq;
+                    }
+                    for (int k = 0; k < N; k++) {
+                        double apk = a[p][k];
+                        double aqk = a[q][k];
+                        a[p][k] = c * apk - s * aqk;
+                        a[q][k] = s * apk + c * aqk;
+                    }
+                    for (int k = 0; k < N; k++) {
+                        double vkp = vectors[k][p];
+                        double vkq = vectors[k][q];
+                        vectors[k][p] = c * vkp - s * vkq;
+                        vectors[k][q] = s * vkp + c * vkq;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < N; i++) {
+            values[i] = a[i][i];
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Noisy cross-entropy method (Szita and Lorincz, Learning Tetris Using the Noisy Cross-Entropy Method). Weights are
+ * drawn from independent normal distributions, whose means and variances are then fitted to the best ones. Some
+ * noise is added to the variances so that they do not collapse before the weights are good, less and less of it
+ * over NOISE_GENERATIONS generations.
+ * <p>
+ * Only the direction of the weights matters to PlayerSkeleton, so the samples are normalized before being scored
+ * and fitted.
+ */
+public class CrossEntropy implements Optimizer {
+    public static final int POPULATION_SIZE = 50;
+    public static final int NUM_ELITES = 10;
+
+    private static final double INITIAL_VARIANCE = 1;
+    private static final double NOISE = 0.05;
+    private static final int NOISE_GENERATIONS = 50;
+
+    private static final int NUM_PARAMETERS = StateSimulator2.NUM_FEATURES;
+
+    private Random rand = new Random();
+
+    @Override
+    public void optimize(FitnessEvaluator evaluator, long maxEvaluations) {
+        double[] mean = new double[NUM_PARAMETERS];
+        double[] variance = new double[NUM_PARAMETERS];
+        Arrays.fill(variance, INITIAL_VARIANCE);
+        double[][] population = new double[POPULATION_SIZE][NUM_PARAMETERS];
+        Integer[] ranks = new Integer[POPULATION_SIZE];
+
+        for (int generation = 1; evaluator.getEvaluations() + POPULATION_SIZE <= maxEvaluations; generation++) {
+            for (double[] weights : population) {
+                for (int j = 0; j < NUM_PARAMETERS; j++) {
+                    weights[j] = mean[j] + rand.nextGaussian() * Math.sqrt(variance[j]);
+                }
+                FitnessEvaluator.normalizeVector(weights);
+            }
+            final double[] fitness = evaluator.evaluate(population);
+            for (int i = 0; i < POPULATION_SIZE; i++) {
+                ranks[i] = i;
+            }
+            Arrays.sort(ranks, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Double.compare(fitness[b], fitness[a]);
+                }
+            });
+
+            double noise = NOISE * Math.max(0, 1 - (double) generation / NOISE_GENERATIONS);
+            for (int j = 0; j < NUM_PARAMETERS; j++) {
+                double sum = 0;
+                double sumOfSquares = 0;
+                for (int i = 0; i < NUM_ELITES; i++) {
+                    double weight = population[ranks[i]][j];
+                    sum += weight;
+                    sumOfSquares += weight * weight;
+                }
+                mean[j] = sum / NUM_ELITES;
+                variance[j] = sumOfSquares / NUM_ELITES - mean[j] * mean[j] + noise;
+            }
+
+            if (generation % 10 == 0)
+                evaluator.printProgress("Generation #" + generation);
+        }
+    }
+}
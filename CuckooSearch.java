@@ -0,0 +1,87 @@
+import java.util.Random;
+
+/**
+ * Cuckoo search (Yang and Deb, Cuckoo Search via Levy Flights). Each nest holds weights. Every generation, each nest
+ * tries weights a Levy flight away from its own, scaled by their distance to the best nest, then a fraction
+ * ABANDON_PROBABILITY of the parameters of the nests are moved towards other nests, as eggs found by the host
+ * birds. A nest keeps the new weights only if they are better. 15 nests and a quarter abandoned, as in the
+ * version described in the README.
+ * <p>
+ * Nests keep their fitness from one generation to the next, so the evaluator must give absolute fitness values,
+ * without the stages of FitnessEvaluator.setStages().
+ */
+public class CuckooSearch implements Optimizer {
+    public static final int NUM_NESTS = 15;
+    private static final double ABANDON_PROBABILITY = 0.25;
+    private static final double STEP_SIZE = 0.01;
+
+    /**
+     * exponent of the Levy flights, and the deviation of Mantegna's algorithm that draws them, given by
+     * (Gamma(1 + BETA) * sin(pi * BETA / 2) / (Gamma((1 + BETA) / 2) * BETA * 2^((BETA - 1) / 2)))^(1 / BETA)
+     */
+    private static final double BETA = 1.5;
+    private static final double SIGMA_U = 0.6965745025576967;
+
+    private static final int NUM_PARAMETERS = StateSimulator2.NUM_FEATURES;
+
+    private Random rand = new Random();
+
+    @Override
+    public void optimize(FitnessEvaluator evaluator, long maxEvaluations) {
+        double[][] nests = new double[NUM_NESTS][NUM_PARAMETERS];
+        double[][] newNests = new double[NUM_NESTS][NUM_PARAMETERS];
+        for (double[] nest : nests) {
+            for (int j = 0; j < NUM_PARAMETERS; j++) {
+                nest[j] = rand.nextDouble() * 2 - 1;
+            }
+            FitnessEvaluator.normalizeVector(nest);
+        }
+        double[] fitness = evaluator.evaluate(nests);
+
+        for (int generation = 1; evaluator.getEvaluations() + 2 * NUM_NESTS <= maxEvaluations; generation++) {
+            double[] best = nests[indexOfBest(fitness)];
+            for (int i = 0; i < NUM_NESTS; i++) {
+                for (int j = 0; j < NUM_PARAMETERS; j++) {
+                    double step = rand.nextGaussian() * SIGMA_U / Math.pow(Math.abs(rand.nextGaussian()), 1 / BETA);
+                    newNests[i][j] = nests[i][j] + STEP_SIZE * step * (nests[i][j] - best[j]) * rand.nextGaussian();
+                }
+                FitnessEvaluator.normalizeVector(newNests[i]);
+            }
+            keepBetter(nests, fitness, newNests, evaluator.evaluate(newNests));
+
+            for (int i = 0; i < NUM_NESTS; i++) {
+                double[] a = nests[rand.nextInt(NUM_NESTS)];
+                double[] b = nests[rand.nextInt(NUM_NESTS)];
+                double r = rand.nextDouble();
+                for (int j = 0; j < NUM_PARAMETERS; j++) {
+                    newNests[i][j] = nests[i][j];
+                    if (rand.nextDouble() < ABANDON_PROBABILITY)
+                        newNests[i][j] += r * (a[j] - b[j]);
+                }
+                FitnessEvaluator.normalizeVector(newNests[i]);
+            }
+            keepBetter(nests, fitness, newNests, evaluator.evaluate(newNests));
+
+            if (generation % 10 == 0)
+                evaluator.printProgress("Generation #" + generation);
+        }
+    }
+
+    private static void keepBetter(double[][] nests, double[] fitness, double[][] newNests, double[] newFitness) {
+        for (int i = 0; i < NUM_NESTS; i++) {
+            if (newFitness[i] > fitness[i]) {
+                System.arraycopy(newNests[i], 0, nests[i], 0, NUM_PARAMETERS);
+                fitness[i] = newFitness[i];
+            }
+        }
+    }
+
+    private static int indexOfBest(double[] fitness) {
+        int best = 0;
+        for (int i = 1; i < fitness.length; i++) {
+            if (fitness[i] > fitness[best])
+                best = i;
+        }
+        return best;
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Bounded cache from the Zobrist hash of a board to the features that only depend on the board, i.e. all but
+ * landing height and eroded piece cells. It is direct-mapped: each hash has exactly one slot, and a new board
+ * always replaces whatever was in its slot. It is not thread-safe, so each thread gets its own one.
+ */
+public class FeatureCache {
+    /**
+     * number of slots, a power of 2. Small enough for the whole cache to stay in the L2 cache of a core.
+     */
+    public static final int CAPACITY = 1 << 12;
+
+    /**
+     * the features stored per board
+     */
+    public static final int[] BOARD_FEATURES = {
+            StateSimulator2.INDEX_NUMHOLES,
+            StateSimulator2.INDEX_COL_TRANSITIONS,
+            StateSimulator2.INDEX_HOLE_DEPTH,
+            StateSimulator2.INDEX_NUM_ROWS_WITH_HOLE,
+            StateSimulator2.INDEX_ROW_TRANSITIONS,
+            StateSimulator2.INDEX_CUMULATIVE_WELLS
+    };
+
+    private static final ThreadLocal<FeatureCache> CACHES = ThreadLocal.withInitial(FeatureCache::new);
+
+    /**
+     * the key and the features of a slot are next to each other, so that a lookup touches a single cache line:
+     * 2 ints of hash, then one int per board feature, padded to SLOT_SIZE. A hash of 0 marks an empty slot. A board
+     * can still hash to 0, as its cell keys may cancel out, so such a hash is stored as ZERO_HASH instead.
+     */
+    private static final int SLOT_SIZE = 8;
+    private static final long ZERO_HASH = 0x9E3779B97F4A7C15L;
+    private final int[] table = new int[CAPACITY * SLOT_SIZE];
+
+    private long hits;
+    private long misses;
+
+    /**
+     * @return the cache of the calling thread
+     */
+    public static FeatureCache forCurrentThread() {
+        return CACHES.get();
+    }
+
+    /**
+     * copies the cached board features of hash into features, at their usual indices
+     * @return false if the board is not cached, in which case features is untouched
+     */
+    public boolean get(long hash, int[] features) {
+        hash = nonZero(hash);
+        int offset = ((int) hash & (CAPACITY - 1)) * SLOT_SIZE;
+        if (table[offset] != (int) hash || table[offset + 1] != (int) (hash >>> 32)) {
+            misses++;
+            return false;
+        }
+        hits++;
+        for (int i = 0; i < BOARD_FEATURES.length; i++) {
+            features[BOARD_FEATURES[i]] = table[offset + 2 + i];
+        }
+        return true;
+    }
+
+    /**
+     * stores the board features of hash, evicting the board that was in its slot
+     */
+    public void put(long hash, int[] features) {
+        hash = nonZero(hash);
+        int offset = ((int) hash & (CAPACITY - 1)) * SLOT_SIZE;
+        table[offset] = (int) hash;
+        table[offset + 1] = (int) (hash >>> 32);
+        for (int i = 0; i < BOARD_FEATURES.length; i++) {
+            table[offset + 2 + i] = features[BOARD_FEATURES[i]];
+        }
+    }
+
+    /**
+     * @return hash, or ZERO_HASH for 0, so that no board is mistaken for an empty slot
+     */
+    private static long nonZero(long hash) {
+        return hash == 0 ? ZERO_HASH : hash;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+}
@@ -0,0 +1,162 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache from weights to the fitness PlayGame found for them, so that weights the colony comes back to
+ * (a mutation landing on an earlier point, a rejected change tried again) are not played again. Weights are
+ * normalized and then rounded to multiples of QUANTUM, so that vectors differing only by rounding errors share an
+ * entry. The least recently used entry is evicted when the cache is full. It is thread-safe.
+ * <p>
+ * Entries can also be keyed by a PolicyFingerprint instead, so that weights playing the same moves share one.
+ */
+public class FitnessCache {
+    /**
+     * weights closer than this in every component share an entry
+     */
+    public static final double QUANTUM = 1e-4;
+
+    /**
+     * the result of the games played with some weights
+     */
+    public static final class Entry {
+        public final double fitness;
+
+        /**
+         * number of games the fitness is the median of
+         */
+        public final int gamesPlayed;
+
+        /**
+         * fitness the games raced against, NaN if all the games were played. A raced result is only known to be
+         * no better than it.
+         */
+        public final double incumbentFitness;
+
+        /**
+         * the score of each game, so that the games can be checked against other thresholds or carried on with,
+         * see PlayGame.setThresholds(). Not to be modified
+         */
+        public final double[] scores;
+
+        Entry(double fitness, int gamesPlayed, double incumbentFitness, double[] scores) {
+            this.fitness = fitness;
+            this.gamesPlayed = gamesPlayed;
+            this.incumbentFitness = incumbentFitness;
+            this.scores = scores;
+        }
+    }
+
+    private static final class Key {
+        /**
+         * the quantized weights, or the 2 halves of a fingerprint
+         */
+        private final int[] weights;
+        private final int[] pieceFrequencies;
+        private final int hash;
+
+        Key(double[] weights, int[] pieceFrequencies) {
+            double norm = 0;
+            for (double weight : weights) {
+                norm += weight * weight;
+            }
+            norm = Math.sqrt(norm);
+            this.weights = new int[weights.length];
+            for (int i = 0; i < weights.length; i++) {
+                this.weights[i] = (int) Math.round(weights[i] / norm / QUANTUM);
+            }
+            this.pieceFrequencies = pieceFrequencies;
+            this.hash = 31 * Arrays.hashCode(this.weights) + Arrays.hashCode(pieceFrequencies);
+        }
+
+        Key(long fingerprint, int[] pieceFrequencies) {
+            this.weights = new int[] {(int) fingerprint, (int) (fingerprint >>> 32)};
+            this.pieceFrequencies = pieceFrequencies;
+            this.hash = 31 * Arrays.hashCode(this.weights) + Arrays.hashCode(pieceFrequencies);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return hash == other.hash && Arrays.equals(weights, other.weights)
+                    && Arrays.equals(pieceFrequencies, other.pieceFrequencies);
+        }
+    }
+
+    private final Map<Key, Entry> entries;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * @param capacity maximum number of entries
+     */
+    public FitnessCache(final int capacity) {
+        entries = new LinkedHashMap<Key, Entry>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, FitnessCache.Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * A cached result stands in for new games if it is the median of at least as many games, or if it lost a race
+     * against an incumbent no better than the one to beat now, as it would lose again.
+     * @param pieceFrequencies those of the games, as results on other distributions of pieces are not comparable
+     * @param incumbentFitness fitness the new games would race against, NaN if they would all be played
+     * @param numGames number of games the new result would be the median of
+     * @return the result for weights, or null if there is none that can stand in for new games
+     */
+    public Entry get(double[] weights, int[] pieceFrequencies, double incumbentFitness, int numGames) {
+        return get(new Key(weights, pieceFrequencies), incumbentFitness, numGames);
+    }
+
+    /**
+     * same as get() for the weights of fingerprint, see PolicyFingerprint
+     */
+    public Entry get(long fingerprint, int[] pieceFrequencies, double incumbentFitness, int numGames) {
+        return get(new Key(fingerprint, pieceFrequencies), incumbentFitness, numGames);
+    }
+
+    private synchronized Entry get(Key key, double incumbentFitness, int numGames) {
+        Entry entry = entries.get(key);
+        if (entry != null && (entry.gamesPlayed >= numGames || incumbentFitness >= entry.incumbentFitness)) {
+            hits++;
+            return entry;
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * records the result of the games played with weights, replacing any previous one
+     */
+    public synchronized void put(double[] weights, int[] pieceFrequencies, Entry entry) {
+        entries.put(new Key(weights, pieceFrequencies), entry);
+    }
+
+    public synchronized void put(long fingerprint, int[] pieceFrequencies, Entry entry) {
+        entries.put(new Key(fingerprint, pieceFrequencies), entry);
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+}
@@ -0,0 +1,223 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Scores weights for the optimizers, see Optimizer. A population is scored at once: every game of every candidate
+ * is a task of its own on the pool, so that the cores stay busy whatever the size of the population. The
+ * candidates of a population play the same pieces (common random numbers), and results are memoized in a
+ * FitnessCache. Keeps the best weights scored so far.
+ * <p>
+ * With setStages(), a population is screened by successive halving: every candidate plays the cheap games of the
+ * first stage, and only the best of them go on to the next, longer one.
+ */
+public class FitnessEvaluator {
+    private static final int FITNESS_CACHE_CAPACITY = 1 << 16;
+
+    /**
+     * games of one fidelity of multi-fidelity evaluation
+     */
+    public static final class Stage {
+        /**
+         * the S/Z bias of the pieces, see PlayGame.setLevel()
+         */
+        public final int level;
+
+        /**
+         * see PlayGame.setGarbageRows()
+         */
+        public final int garbageRows;
+        public final int numGames;
+
+        /**
+         * fraction of the candidates of this stage that go on to the next one
+         */
+        public final double keepFraction;
+
+        public Stage(int level, int garbageRows, int numGames, double keepFraction) {
+            this.level = level;
+            this.garbageRows = garbageRows;
+            this.numGames = numGames;
+            this.keepFraction = keepFraction;
+        }
+    }
+
+    /**
+     * the games are played on es; each candidate waits for its games in a thread of drivers
+     */
+    private final ExecutorService es;
+    private final ExecutorService drivers = Executors.newCachedThreadPool();
+    private final FitnessCache fitnessCache = new FitnessCache(FITNESS_CACHE_CAPACITY);
+    private Random rand = new Random();
+
+    /**
+     * null to play the games of PlayGame.setLevel() only
+     */
+    private Stage[] stages;
+
+    private long evaluations;
+    private long gamesPlayed;
+
+    private double bestFitness = Double.NEGATIVE_INFINITY;
+    private double[] bestWeights;
+
+    public FitnessEvaluator(ExecutorService es) {
+        this.es = es;
+    }
+
+    /**
+     * Turns on multi-fidelity evaluation. The best fitness and weights are then those of the last stage. The fitness
+     * of candidates eliminated early only ranks them within their evaluate() call, so this is for optimizers that
+     * compare candidates of the same population only, like CrossEntropy and CMAES.
+     * @param stages from the cheapest to the last one, whose fitness is the one reported. None to turn it off
+     */
+    public void setStages(Stage... stages) {
+        this.stages = stages.length == 0 ? null : stages;
+    }
+
+    /**
+     * @param population weights to score, left untouched. They need not be normalized
+     * @return the fitness of each of them, the median score of PlayGame.NUM_GAMES_TO_AVERAGE games. With stages,
+     * that of the last stage each reached: candidates eliminated earlier get a negative fitness that only ranks them,
+     * below those that went further
+     */
+    public double[] evaluate(double[][] population) {
+        double[] fitness = new double[population.length];
+        Integer[] candidates = new Integer[population.length];
+        for (int i = 0; i < candidates.length; i++) {
+            candidates[i] = i;
+        }
+        if (stages == null) {
+            play(population, candidates, fitness, null);
+            for (int i = 0; i < population.length; i++) {
+                updateBest(population[i], fitness[i]);
+            }
+        } else {
+            int numCandidates = candidates.length;
+            for (int k = 0; k < stages.length; k++) {
+                final double[] stageFitness = new double[population.length];
+                play(population, Arrays.copyOf(candidates, numCandidates), stageFitness, stages[k]);
+                Arrays.sort(candidates, 0, numCandidates, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        return Double.compare(stageFitness[b], stageFitness[a]);
+                    }
+                });
+                boolean last = k == stages.length - 1;
+                int numKept = last ? numCandidates
+                        : Math.max(1, (int) Math.ceil(numCandidates * stages[k].keepFraction));
+                for (int j = 0; j < numCandidates; j++) {
+                    int i = candidates[j];
+                    // the earlier the stage, the lower; within a stage, in the order of its scores
+                    fitness[i] = last ? stageFitness[i] : k - (stages.length - 1) - 1 / (1 + stageFitness[i]);
+                }
+                numCandidates = numKept;
+            }
+            for (int j = 0; j < numCandidates; j++) {
+                updateBest(population[candidates[j]], fitness[candidates[j]]);
+            }
+        }
+        evaluations += population.length;
+        return fitness;
+    }
+
+    /**
+     * plays the games of stage for population[i] of each i of candidates, on the same pieces
+     * @param stage null for the games of PlayGame.setLevel()
+     * @param fitness where the fitness of population[i] is stored
+     */
+    private void play(double[][] population, Integer[] candidates, double[] fitness, Stage stage) {
+        long seed = rand.nextLong();
+        final PlayGame[] games = new PlayGame[candidates.length];
+        List<Future<Double>> results = new ArrayList<>(candidates.length);
+        for (int j = 0; j < candidates.length; j++) {
+            final PlayGame game = new PlayGame(population[candidates[j]], 0, candidates[j], seed);
+            game.setFitnessCache(fitnessCache);
+            if (stage != null) {
+                game.setPieceFrequencies(PieceSequence.withSZBias(stage.level));
+                game.setGarbageRows(stage.garbageRows);
+                game.setNumGames(stage.numGames);
+            }
+            games[j] = game;
+            results.add(drivers.submit(new Callable<Double>() {
+                @Override
+                public Double call() throws Exception {
+                    return game.callSplit(es);
+                }
+            }));
+        }
+
+        for (int j = 0; j < candidates.length; j++) {
+            try {
+                fitness[candidates[j]] = results.get(j).get();
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+            }
+            gamesPlayed += games[j].getGamesPlayed();
+        }
+    }
+
+    private void updateBest(double[] weights, double fitness) {
+        if (fitness > bestFitness) {
+            bestFitness = fitness;
+            bestWeights = weights.clone();
+        }
+    }
+
+    /**
+     * @return the number of weights scored so far
+     */
+    public long getEvaluations() {
+        return evaluations;
+    }
+
+    public double getBestFitness() {
+        return bestFitness;
+    }
+
+    /**
+     * @return the weights with the best fitness so far, normalized
+     */
+    public double[] getBestWeights() {
+        double[] weights = bestWeights.clone();
+        normalizeVector(weights);
+        return weights;
+    }
+
+    /**
+     * scales vector to a norm of 1, which does not change the moves of weights
+     */
+    public static void normalizeVector(double[] vector) {
+        double norm = 0;
+        for (double elem : vector) {
+            norm += elem * elem;
+        }
+        norm = Math.sqrt(norm);
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] /= norm;
+        }
+    }
+
+    public void printProgress(String title) {
+        System.out.println(title);
+        Debug.printBold("optimum = " + bestFitness + "\n");
+        System.out.printf("weights scored = %d, games played = %d\n", evaluations, gamesPlayed);
+        System.out.printf("fitness cache hit rate = %.1f%% of %d lookups\n", 100 * fitnessCache.getHitRate(),
+                fitnessCache.getHits() + fitnessCache.getMisses());
+        for (double weight : getBestWeights()) {
+            System.out.printf(" %.8f ,", weight);
+        }
+        System.out.println("\n-----------------------------------------");
+    }
+
+    public void shutdown() {
+        drivers.shutdown();
+    }
+}
@@ -0,0 +1,11 @@
+/**
+ * Searches the weights of PlayerSkeleton with the best fitness. The weights are scored by a FitnessEvaluator, which
+ * also keeps the best ones, so that optimizers can be compared by the number of weights they score.
+ */
+public interface Optimizer {
+    /**
+     * @param evaluator scores the weights, and keeps the best ones found
+     * @param maxEvaluations number of weights to score before stopping
+     */
+    void optimize(FitnessEvaluator evaluator, long maxEvaluations);
+}
@@ -1,6 +1,11 @@
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Callable used to play the game concurrently in order to reduce the running time. Because we are modelling the game not as a RL problem but rather as an optimization problem, we must evaluate the performance of a candidate solution by playing the game till we lose.
@@ -20,19 +25,107 @@ public class PlayGame implements Callable<Double> {
 
     private static final int C = 100;
 
-    private int[] performanceMeasures;
     private static final boolean useStatistics = false;
 
+    /**
+     * player of each thread, reused from one game to the next so that games allocate next to nothing. A game
+     * never waits for another one, so no two games of a thread play at once.
+     */
+    private static final ThreadLocal<PlayerSkeleton> PLAYERS = ThreadLocal.withInitial(PlayerSkeleton::new);
+
     /**
      * stores the score/performance for each game so that we can later sort and retrieve the median, min, max etc.
      */
     private double[] scores = new double[NUM_GAMES_TO_AVERAGE];
     public static int NUM_GAMES_TO_AVERAGE = 30;
 
+    /**
+     * number of games of this evaluation, see setNumGames()
+     */
+    private int numGames = NUM_GAMES_TO_AVERAGE;
+
+    /**
+     * number of rows of garbage the games start with, see setGarbageRows()
+     */
+    private int garbageRows;
+
+    /**
+     * number of moves after which the games stop, 0 to play them till they are lost, see setMoveBudget()
+     */
+    private int moveBudget;
+    private SurvivalEstimate survival;
+
+    /**
+     * number of first moves the players search one piece further, see PlayerSkeleton.setLookaheadWidth()
+     */
+    public static int LOOKAHEAD_WIDTH = 0;
+
+    /**
+     * Racing: when given the fitness to beat, the games stop as soon as the candidate is very likely worse.
+     * Each game either beats the incumbent or not, and a sequential probability ratio test (Wald) decides between
+     * p = 0.5 (as good: half the games beat its median) and p = RACING_WORSE_P, wrongly stopping a candidate that
+     * is as good with probability at most RACING_ALPHA. Games also stop once the median can no longer beat it.
+     */
+    private static final double RACING_ALPHA = 0.01;
+    private static final double RACING_WORSE_P = 0.2;
+    private static final double RACING_STOP_THRESHOLD = Math.log((1 - RACING_ALPHA) / RACING_ALPHA);
+    private static final double RACING_LLR_BEATEN = Math.log((1 - RACING_WORSE_P) / 0.5);
+    private static final double RACING_LLR_BEATS = Math.log(RACING_WORSE_P / 0.5);
+
+    /**
+     * fitness the candidate has to beat, NaN when all the games are played
+     */
+    private double incumbentFitness = Double.NaN;
+
+    /**
+     * Adaptive allocation: the candidate plays between MIN_GAMES and MAX_GAMES games, and stops as soon as the
+     * confidence interval of its median (at ADAPTIVE_Z, from the order statistics of its scores) is clear of every
+     * threshold it is compared to. Candidates far from them stop early, close contests get more games.
+     */
+    public static int MIN_GAMES = 10;
+    public static int MAX_GAMES = 60;
+    private static final double ADAPTIVE_Z = 2;
+
+    /**
+     * fitness values the decisions taken on this candidate compare it to, null for a fixed number of games, see
+     * setThresholds()
+     */
+    private double[] thresholds;
+
+    /**
+     * number of games actually played by call(), and the time it took
+     */
+    private int gamesPlayed;
+
+    /**
+     * number of scores in scores: the games played, and with setThresholds() the cached ones carried on with
+     */
+    private int numScores;
+    private long runningTime;
+
     private Random rand = new Random();
 
+    /**
+     * each game plays a sequence split from the one of this seed, so that games with the same seed play the same pieces
+     */
+    private long seed;
+
     private double[] weights;
 
+    /**
+     * results of earlier evaluations, to skip the games when these weights were already scored, see
+     * setFitnessCache()
+     */
+    private FitnessCache fitnessCache;
+
+    /**
+     * results of earlier evaluations by the moves their weights pick on the positions of policyFingerprint, see
+     * setPolicyCache()
+     */
+    private FitnessCache policyCache;
+    private PolicyFingerprint policyFingerprint;
+    private long fingerprint;
+
     /**
      * saves the food index that was modified to create the weights used for the games
      */
@@ -44,66 +137,390 @@ public class PlayGame implements Callable<Double> {
     public int beeIndex;
 
     /**
-     * sets the bound for random.nextDouble() in order to modify the probability of pieces.
-     * Call setLevel() to adjust this bound
+     * relative frequencies of the pieces in the games created from now on. Call setLevel() to adjust them
+     */
+    private static int[] defaultPieceFrequencies = PieceSequence.withSZBias(2); // default set to level 2 for training
+
+    /**
+     * relative frequencies of the pieces in the games of this evaluation, see setPieceFrequencies()
      */
-    public static int bound = 9; // default set to 9 for training
+    private int[] pieceFrequencies = defaultPieceFrequencies;
 
     public PlayGame(double[] weights) {
         this.weights = weights;
-        if (useStatistics)
-            this.performanceMeasures = new int[4*2+1];
+        this.seed = rand.nextLong();
     }
 
     public PlayGame(double[] weights, int foodIndex) {
         this.weights = weights;
         this.foodIndex = foodIndex;
-        if (useStatistics)
-            this.performanceMeasures = new int[4*2+1];
+        this.seed = rand.nextLong();
     }
 
     public PlayGame(double[] weights, int foodIndex, int beeIndex) {
-        this.weights = weights;
-        this.foodIndex = foodIndex;
+        this(weights, foodIndex);
         this.beeIndex = beeIndex;
+    }
 
-        if (useStatistics)
-            this.performanceMeasures = new int[4*2+1];
+    /**
+     * @param seed games created with the same seed play the same sequences of pieces, whatever the weights
+     */
+    public PlayGame(double[] weights, int foodIndex, int beeIndex, long seed) {
+        this(weights, foodIndex, beeIndex);
+        this.seed = seed;
+    }
+
+    /**
+     * Turns on racing, see RACING_ALPHA. A stopped evaluation returns the median of the games played, which is then
+     * no better than the incumbent.
+     * @param incumbentFitness the fitness this candidate replaces if it beats it
+     */
+    public void setIncumbentFitness(double incumbentFitness) {
+        this.incumbentFitness = incumbentFitness;
+    }
+
+    /**
+     * Turns on adaptive allocation, see MIN_GAMES, in place of racing. A candidate stopped below every threshold
+     * is cached as a lost race against the lowest one.
+     * @param thresholds fitness values whose comparison with this candidate matters, e.g. that of the food source
+     *                   it would replace and the global best
+     */
+    public void setThresholds(double... thresholds) {
+        this.thresholds = thresholds;
+        if (scores.length < MAX_GAMES)
+            scores = new double[MAX_GAMES];
+    }
+
+    /**
+     * @return the most games call() can play: MAX_GAMES with adaptive allocation, the number of games otherwise
+     */
+    public int getMaxGames() {
+        return thresholds != null && moveBudget == 0 ? MAX_GAMES : numGames;
+    }
+
+    /**
+     * @return the number of games call() played, less than the number of games if the race stopped it
+     */
+    public int getGamesPlayed() {
+        return gamesPlayed;
+    }
+
+    /**
+     * @return the time call() or callSplit() took, in nanoseconds
+     */
+    public long getRunningTime() {
+        return runningTime;
+    }
+
+    /**
+     * @param frequencies relative frequency of each piece in the games of this evaluation, e.g.
+     *                    PieceSequence.withSZBias(3). Defaults to those of the current level
+     */
+    public void setPieceFrequencies(int[] frequencies) {
+        this.pieceFrequencies = frequencies;
+    }
+
+    /**
+     * @param numGames number of games the fitness is the median of. Defaults to NUM_GAMES_TO_AVERAGE
+     */
+    public void setNumGames(int numGames) {
+        this.numGames = numGames;
+        if (scores.length < numGames)
+            scores = new double[numGames];
+    }
+
+    /**
+     * Makes the games shorter by starting them on a board whose bottom rows are full but for one hole each, the
+     * same for every evaluation of the same seed. Such results are not cached, as the caches do not tell them apart.
+     * @param garbageRows number of rows, 0 for an empty board
+     */
+    public void setGarbageRows(int garbageRows) {
+        this.garbageRows = garbageRows;
+    }
+
+    /**
+     * Stops each game after moveBudget moves, and estimates the mean lines cleared per game from these games with
+     * a survival model instead of taking the median, see SurvivalEstimate. The games are not raced, and the results
+     * not cached, as such a fitness is not comparable to a median. Early losses are rarer than the model says, so
+     * the estimate is too high when the budget stops most games before their boards fill up.
+     * @param moveBudget 0 to play the games till they are lost
+     * @param survival where the games are recorded; the fitness is its mean (its lower bound while no game was
+     *                 lost), so that evaluations sharing it pool their games
+     */
+    public void setMoveBudget(int moveBudget, SurvivalEstimate survival) {
+        this.moveBudget = moveBudget;
+        this.survival = survival;
+    }
+
+    /**
+     * @param fitnessCache where the result is looked up before playing and recorded after, null to always play
+     */
+    public void setFitnessCache(FitnessCache fitnessCache) {
+        this.fitnessCache = fitnessCache;
+    }
+
+    /**
+     * Weights that pick the same moves as already scored ones on the positions of policyFingerprint reuse their
+     * result, when the weights are not in the fitness cache. Only used for greedy play: with a lookahead, the
+     * utilities matter and not only which move is the best.
+     * @param policyCache where the result is looked up before playing and recorded after, by fingerprint
+     */
+    public void setPolicyCache(FitnessCache policyCache, PolicyFingerprint policyFingerprint) {
+        this.policyCache = policyCache;
+        this.policyFingerprint = policyFingerprint;
+    }
+
+    /**
+     * @return the scores of the games call() or callSplit() played, none if the result was cached. With
+     * setThresholds(), also those of the cached games they carried on with
+     */
+    public double[] getScores() {
+        return Arrays.copyOf(scores, numScores);
     }
 
     /**
-     * @return the fitness value (median score of games played) of the weights assigned
+     * @return the fitness value (median score of games played) of the weights assigned, or the estimate of
+     * setMoveBudget()
      */
     @Override
     public Double call() {
-        for (int i = 0; i < NUM_GAMES_TO_AVERAGE; i++) {
-            if (useStatistics)
-                resetPerformanceMeasures();
-
-            PlayerSkeleton player = new PlayerSkeleton();
-            player.setWeights(this.weights);
-            State s = new State();
-            while (!s.hasLost()) {
-                changeNextPiece(s);
-                int bestMove = player.pickMove(s, s.legalMoves());
-                if (useStatistics) {
-                    player.sim.copyState(s);
-                    player.sim.makeMove(bestMove);
-                    recordPerformancePerMove(player.sim.getFeaturesArray());
+        if (thresholds != null && moveBudget == 0)
+            return callAdaptive();
+        long startTime = System.nanoTime();
+        gamesPlayed = 0;
+        numScores = 0;
+        FitnessCache.Entry cached = getCachedResult(incumbentFitness);
+        if (cached != null) {
+            runningTime = System.nanoTime() - startTime;
+            return cached.fitness;
+        }
+
+        PieceSequence pieces = new PieceSequence(seed, pieceFrequencies);
+        boolean racing = !Double.isNaN(incumbentFitness) && moveBudget == 0;
+        int gamesBeatingIncumbent = 0;
+        double logLikelihoodRatio = 0;
+        for (int i = 0; i < numGames; i++) {
+            scores[i] = playGame(pieces.split(), i);
+            gamesPlayed++;
+            numScores++;
+
+            if (racing) {
+                if (scores[i] > incumbentFitness) {
+                    gamesBeatingIncumbent++;
+                    logLikelihoodRatio += RACING_LLR_BEATS;
+                } else {
+                    logLikelihoodRatio += RACING_LLR_BEATEN;
+                }
+                // the median beats the incumbent only if more than half the games do
+                int gamesLeft = numGames - gamesPlayed;
+                if (logLikelihoodRatio >= RACING_STOP_THRESHOLD
+                        || gamesBeatingIncumbent + gamesLeft < numGames - numGames / 2)
+                    break;
+            }
+        }
+
+        double fitness = getFitness();
+        cacheResult(new FitnessCache.Entry(fitness, gamesPlayed, incumbentFitness, getScores()));
+        runningTime = System.nanoTime() - startTime;
+        return fitness;
+    }
+
+    /**
+     * call() with adaptive allocation, see MIN_GAMES. A cached result is not taken as it is, as it may have been
+     * clear of other thresholds: its scores are checked against the current ones, and more games are played after
+     * them if they are not clear of them.
+     */
+    private double callAdaptive() {
+        long startTime = System.nanoTime();
+        gamesPlayed = 0;
+        double lowestThreshold = Double.POSITIVE_INFINITY;
+        for (double threshold : thresholds) {
+            lowestThreshold = Math.min(lowestThreshold, threshold);
+        }
+
+        PieceSequence pieces = new PieceSequence(seed, pieceFrequencies);
+        numScores = 0;
+        FitnessCache.Entry cached = getCachedResult(Double.NaN, 0);
+        if (cached != null && cached.scores != null) {
+            numScores = Math.min(cached.scores.length, MAX_GAMES);
+            System.arraycopy(cached.scores, 0, scores, 0, numScores);
+            // the games played next are not those of the cached scores
+            for (int i = 0; i < numScores; i++) {
+                pieces.split();
+            }
+        }
+
+        while (numScores < MIN_GAMES || (numScores < MAX_GAMES && !isClearOfThresholds())) {
+            scores[numScores] = playGame(pieces.split(), numScores);
+            numScores++;
+            gamesPlayed++;
+        }
+
+        Arrays.sort(scores, 0, numScores);
+        double median = scores[numScores / 2];
+        if (gamesPlayed > 0) {
+            boolean belowAll = upperMedianBound() < lowestThreshold;
+            cacheResult(new FitnessCache.Entry(median, numScores, belowAll ? lowestThreshold : Double.NaN,
+                    getScores()));
+        }
+        runningTime = System.nanoTime() - startTime;
+        return median;
+    }
+
+    /**
+     * Sorts the scores, whose distribution-free confidence interval of the median comes from their order statistics.
+     * @return true if no threshold is inside the interval
+     */
+    private boolean isClearOfThresholds() {
+        Arrays.sort(scores, 0, numScores);
+        double lower = scores[Math.max(0, (int) Math.floor(numScores / 2.0 - medianHalfWidth()))];
+        double upper = upperMedianBound();
+        for (double threshold : thresholds) {
+            if (threshold >= lower && threshold <= upper)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the upper bound of the confidence interval of the median of the scores, sorted
+     */
+    private double upperMedianBound() {
+        return scores[Math.min(numScores - 1, (int) Math.ceil(numScores / 2.0 + medianHalfWidth()))];
+    }
+
+    private double medianHalfWidth() {
+        return ADAPTIVE_Z * Math.sqrt(numScores) / 2;
+    }
+
+    /**
+     * Same as call(), but each game is a task of its own on es, so that a single evaluation can use all the cores.
+     * The games play the same pieces as in call(). Racing is ignored: all the games are played.
+     * @param es executor to play the games on; the calling thread only waits for them
+     * @return the fitness value (median score of games played) of the weights assigned, or the estimate of
+     * setMoveBudget()
+     */
+    public double callSplit(ExecutorService es) throws InterruptedException, ExecutionException {
+        long startTime = System.nanoTime();
+        gamesPlayed = 0;
+        numScores = 0;
+        FitnessCache.Entry cached = getCachedResult(Double.NaN);
+        if (cached != null) {
+            runningTime = System.nanoTime() - startTime;
+            return cached.fitness;
+        }
+
+        PieceSequence pieces = new PieceSequence(seed, pieceFrequencies);
+        List<Future<Double>> games = new ArrayList<>(numGames);
+        for (int i = 0; i < numGames; i++) {
+            final PieceSequence gamePieces = pieces.split();
+            final int gameIndex = i;
+            games.add(es.submit(new Callable<Double>() {
+                @Override
+                public Double call() {
+                    return playGame(gamePieces, gameIndex);
                 }
-                s.makeMove(bestMove);
-            } // end loop
-            if (useStatistics)
-                scores[i] = getComprehensiveUtility();
-            else
-                scores[i] = s.getRowsCleared();
+            }));
         }
+        for (int i = 0; i < numGames; i++) {
+            scores[i] = games.get(i).get();
+        }
+        gamesPlayed = numGames;
+        numScores = numGames;
+
+        double fitness = getFitness();
+        cacheResult(new FitnessCache.Entry(fitness, gamesPlayed, Double.NaN, getScores()));
+        runningTime = System.nanoTime() - startTime;
+        return fitness;
+    }
+
+    /**
+     * @return the median of the scores of the games played, or the estimate of survival with a move budget. While
+     * no game was lost, the mean is infinite (or undefined without any line either), so its lower bound stands in
+     * for it, which is finite and grows with the lines cleared
+     */
+    private double getFitness() {
+        if (moveBudget > 0)
+            return survival.getNumLost() == 0 ? survival.getLowerBound() : survival.getMean();
+        Arrays.sort(scores, 0, gamesPlayed);
+        return scores[gamesPlayed / 2];
+    }
+
+    /**
+     * @param incumbentFitness fitness the games would race against, NaN if they would all be played
+     * @return the result in fitnessCache that can stand in for the games, null if they must be played
+     */
+    private FitnessCache.Entry getCachedResult(double incumbentFitness) {
+        return getCachedResult(incumbentFitness, numGames);
+    }
 
-        Arrays.sort(scores);
-        return scores[NUM_GAMES_TO_AVERAGE / 2]; // the median
+    /**
+     * @param numGames number of games the result has to be the median of, unless it lost a race
+     */
+    private FitnessCache.Entry getCachedResult(double incumbentFitness, int numGames) {
+        if (isCached()) {
+            FitnessCache.Entry cached = fitnessCache.get(weights, pieceFrequencies, incumbentFitness, numGames);
+            if (cached != null)
+                return cached;
+        }
+        if (isPolicyCached()) {
+            fingerprint = policyFingerprint.fingerprint(weights);
+            return policyCache.get(fingerprint, pieceFrequencies, incumbentFitness, numGames);
+        }
+        return null;
+    }
+
+    private boolean isCached() {
+        return fitnessCache != null && garbageRows == 0 && moveBudget == 0;
+    }
+
+    private boolean isPolicyCached() {
+        return policyCache != null && LOOKAHEAD_WIDTH == 0 && garbageRows == 0 && moveBudget == 0;
+    }
+
+    /**
+     * records the result of the games played in the caches, after getCachedResult() found nothing
+     */
+    private void cacheResult(FitnessCache.Entry result) {
+        if (isCached())
+            fitnessCache.put(weights, pieceFrequencies, result);
+        if (isPolicyCached())
+            policyCache.put(fingerprint, pieceFrequencies, result);
     }
 
-    private void recordPerformancePerMove(int[] featuresAfterMove) {
+    /**
+     * plays one game till it is lost or the move budget is spent. Safe to call from several threads at once
+     * @param gameIndex index of the game in the evaluation, which picks its garbage rows
+     * @return the score of the game
+     */
+    private double playGame(PieceSequence pieces, int gameIndex) {
+        int[] performanceMeasures = null;
+        if (useStatistics)
+            performanceMeasures = new int[4*2+1];
+
+        PlayerSkeleton player = PLAYERS.get();
+        player.setWeights(this.weights);
+        player.setLookaheadWidth(LOOKAHEAD_WIDTH);
+        State s = new State(pieces);
+        if (garbageRows > 0)
+            s.addGarbageRows(garbageRows, new Random(seed + gameIndex));
+        while (!s.hasLost() && (moveBudget == 0 || s.getTurnNumber() < moveBudget)) {
+            int bestMove = player.pickMove(s, s.legalMoves());
+            if (useStatistics) {
+                player.sim.copyState(s);
+                player.sim.makeMove(bestMove);
+                recordPerformancePerMove(performanceMeasures, player.sim.getFeaturesArray());
+            }
+            s.makeMove(bestMove);
+        } // end loop
+        if (moveBudget > 0)
+            survival.add(s.getRowsCleared(), s.hasLost());
+        if (useStatistics)
+            return getComprehensiveUtility(performanceMeasures);
+        return s.getRowsCleared();
+    }
+
+    private void recordPerformancePerMove(int[] performanceMeasures, int[] featuresAfterMove) {
         performanceMeasures[INDEX_NUM_MOVES_MADE]++;
 
         int numRowsWithHoles = featuresAfterMove[StateSimulator2.INDEX_NUM_ROWS_WITH_HOLE];
@@ -123,7 +540,7 @@ public class PlayGame implements Callable<Double> {
         performanceMeasures[INDEX_MAX_HOLE_DEPTH] = Math.max(performanceMeasures[INDEX_MAX_HOLE_DEPTH], holeDepth);
     }
 
-    private double getComprehensiveUtility() {
+    private double getComprehensiveUtility(int[] performanceMeasures) {
         double utility = 0;
         double numMovesMade = performanceMeasures[INDEX_NUM_MOVES_MADE];
 
@@ -135,65 +552,21 @@ public class PlayGame implements Callable<Double> {
         return utility;
     }
 
-    private void resetPerformanceMeasures() {
-        for (int i = 0; i < performanceMeasures.length; i++) {
-            performanceMeasures[i] = 0;
-        }
-    }
-
     /**
      * In order to terminate the game faster, we are going to change the distribution of the
-     * randomNextPiece by making it more likely to get S/Z pieces compared to other pieces
+     * pieces by making it more likely to get S/Z pieces compared to other pieces
      *
      * <br> level = 1 => uniform distribution
      * <br> level = 2 => Z and S pieces twice as likely
      * <br> level = 3 => Z and S pieces thrice as likely
-     * @param s state to mutate the nextPiece set according to our probability distribution
-     */
-    private void changeNextPiece(State s) {
-        /*
-             piece labels are as follows:
-             0. 2 by 2 box
-             1. Stick
-             2. L
-             3. mirror L
-             4. T
-             5. Z
-             6. S
-         */
-        int nextPiece = (int) (rand.nextDouble() * bound);
-        switch (nextPiece) {
-            case 8:
-            case 10:
-                nextPiece = 5;
-                break;
-            case 7:
-            case 9:
-                nextPiece = 6;
-                break;
-            default:
-                break;
-        }
-        if (nextPiece > 6) {
-            System.out.println("PlayGame: piece is not set properly");
-            System.exit(1);
-        }
-
-        s.nextPiece = nextPiece; // we can do this since nextPiece is package-private i.e. protected
-    }
-
+     * @param level applies to the games created after this call, see setPieceFrequencies() for a single evaluation
+     */
     public static void setLevel(int level) {
         switch (level) {
-            // bound == 9  => double
-            // bound == 11 => triple
             case 1:
-                bound = 7;
-                break;
             case 2:
-                bound = 9;
-                break;
             case 3:
-                bound = 11;
+                defaultPieceFrequencies = PieceSequence.withSZBias(level);
                 break;
             default:
                 System.exit(-1);
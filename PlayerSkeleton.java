@@ -1,20 +1,73 @@
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class PlayerSkeleton {
 	// another State object to simulate the moves before actually playing
 	protected StateSimulator2 sim;
 	private double[] weights;
 
+	// afterstate features of every legal move, and their utilities - reused for every piece
+	private double[] featureMatrix = new double[StateSimulator2.MAX_MOVES * StateSimulator2.NUM_FEATURES];
+	private boolean[] lostMoves = new boolean[StateSimulator2.MAX_MOVES];
+	private double[] utilities = new double[StateSimulator2.MAX_MOVES];
+
+	/**
+	 * number of first moves, best greedy utility first, that get searched one piece further.
+	 * 0 means plain greedy play. The moves outside this width are pruned from the lookahead.
+	 */
+	private int lookaheadWidth = 0;
+	private int[] candidateMoves = new int[StateSimulator2.MAX_MOVES];
+
+	// one task per candidate of the lookahead, and the action running them on LOOKAHEAD_POOL - reused for every piece
+	private final SecondPlyTask[] tasks = new SecondPlyTask[StateSimulator2.MAX_MOVES];
+	private final LookaheadAction lookahead = new LookaheadAction();
+
+	/**
+	 * number of pieces the last timed pickMove() looked at: 1 for greedy, 2 once a lookahead has finished
+	 */
+	private int lastSearchDepth;
+
+	/**
+	 * shared by every player, so that concurrent games never use more threads than there are processors
+	 */
+	private static final ForkJoinPool LOOKAHEAD_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
 	private static final boolean DEBUG_FEATURES = false;
 	private static Scanner sc = new Scanner(System.in);
 
 	public PlayerSkeleton() {
 		sim = new StateSimulator2();
+		for (int i = 0; i < tasks.length; i++) {
+			tasks[i] = new SecondPlyTask(sim);
+		}
+	}
+
+	/**
+	 * runs the first numTasks tasks, each in a worker of LOOKAHEAD_POOL if there are enough of them
+	 */
+	private final class LookaheadAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private int numTasks;
+
+		@Override
+		protected void compute() {
+			for (int i = numTasks - 1; i > 0; i--) {
+				tasks[i].fork();
+			}
+			tasks[0].invoke();
+			for (int i = 1; i < numTasks; i++) {
+				tasks[i].join();
+			}
+		}
 	}
 
 	//implement this function to have a working system
 	public int pickMove(State s, int[][] legalMoves) {
 		int bestMove = getBestMoveBySimulation(s, legalMoves.length);
+		if (lookaheadWidth > 0)
+			bestMove = getBestMoveByLookahead(bestMove, legalMoves.length);
 		if (DEBUG_FEATURES) {
 			sim.copyState(s);
 			sim.makeMove(bestMove);
@@ -22,24 +75,119 @@ public class PlayerSkeleton {
 		return bestMove;
 	}
 
+	/**
+	 * Anytime version of pickMove(). Finds the greedy move first, then searches one piece further from the moves
+	 * with the best greedy utility down, for as long as the deadline allows. See getLastSearchDepth().
+	 * @param deadline value of System.nanoTime() by which to stop searching. A search that has already started
+	 *                 finishes, which takes one lookahead of a single move
+	 * @return the best move found by then
+	 */
+	public int pickMove(State s, int[][] legalMoves, long deadline) {
+		int bestMove = getBestMoveBySimulation(s, legalMoves.length);
+		lastSearchDepth = 1;
+
+		int numCandidates = rankMoves(legalMoves.length, StateSimulator2.MAX_MOVES);
+		double bestUtility = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < numCandidates && System.nanoTime() < deadline; i++) {
+			int move = candidateMoves[i];
+			tasks[0].reset(weights, move, utilities[move]);
+			tasks[0].invoke();
+			double utility = tasks[0].utility;
+			if (utility > bestUtility) {
+				bestMove = move;
+				bestUtility = utility;
+			}
+			lastSearchDepth = 2;
+		}
+		return bestMove;
+	}
+
+	/**
+	 * @return number of pieces the last timed pickMove() looked at. 2 means the moves with the best greedy utility,
+	 * at least the best one, were searched one piece further
+	 */
+	public int getLastSearchDepth() {
+		return lastSearchDepth;
+	}
+
 	/**
 	 * @param actualState the actual state with which the game runs
 	 * @param numMoves the legal moves allowed
 	 * @return the best move
 	 */
 	private int getBestMoveBySimulation(State actualState, int numMoves) {
+		if (this.weights == null) {
+			System.out.println("PlayerSkeleton: Weight array is not set. Exiting");
+			System.exit(1);
+		}
+
+		sim.copyState(actualState);
+		sim.getAfterstateFeatures(featureMatrix, lostMoves);
+		multiply(featureMatrix, numMoves, weights, utilities);
+
 		int bestMove = 0;
 		double bestUtility = Double.NEGATIVE_INFINITY;
 		for (int currentMove = 0; currentMove < numMoves; currentMove++) {
-			double currentUtility = getUtility(actualState, currentMove);
-			if (currentUtility > bestUtility) {
+			if (!lostMoves[currentMove] && utilities[currentMove] > bestUtility) {
 				bestMove = currentMove;
-				bestUtility = currentUtility;
+				bestUtility = utilities[currentMove];
+			}
+		}
+		return bestMove;
+	}
+
+	/**
+	 * Two-piece expectimax over the candidates of the greedy search, whose utilities must be in place.
+	 * @param greedyMove the move to fall back on if every candidate can lose on the next piece
+	 * @param numMoves the legal moves allowed
+	 * @return the move with the best expected utility after the next piece
+	 */
+	private int getBestMoveByLookahead(int greedyMove, int numMoves) {
+		int numCandidates = rankMoves(numMoves, lookaheadWidth);
+		if (numCandidates == 0)
+			return greedyMove;
+		for (int i = 0; i < numCandidates; i++) {
+			tasks[i].reset(weights, candidateMoves[i], utilities[candidateMoves[i]]);
+		}
+		lookahead.reinitialize();
+		lookahead.numTasks = numCandidates;
+		LOOKAHEAD_POOL.invoke(lookahead);
+
+		int bestMove = greedyMove;
+		double bestUtility = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < numCandidates; i++) {
+			if (tasks[i].utility > bestUtility) {
+				bestMove = tasks[i].move;
+				bestUtility = tasks[i].utility;
 			}
 		}
 		return bestMove;
 	}
 
+	/**
+	 * keeps the width moves that do not lose with the best utility, best first, in candidateMoves
+	 * @return the number of candidates
+	 */
+	private int rankMoves(int numMoves, int width) {
+		int numCandidates = 0;
+		for (int move = 0; move < numMoves; move++) {
+			if (lostMoves[move])
+				continue;
+			// insertion into the sorted candidates, dropping the worst one when full
+			int i = Math.min(numCandidates, width - 1);
+			if (i == width - 1 && numCandidates == width
+					&& utilities[candidateMoves[i]] >= utilities[move])
+				continue;
+			while (i > 0 && utilities[candidateMoves[i - 1]] < utilities[move]) {
+				candidateMoves[i] = candidateMoves[i - 1];
+				i--;
+			}
+			candidateMoves[i] = move;
+			numCandidates = Math.min(numCandidates + 1, width);
+		}
+		return numCandidates;
+	}
+
 	public static void main(String[] args) {
 		State state = new State();
 		new TFrame(state);
@@ -66,27 +214,28 @@ public class PlayerSkeleton {
 		this.weights = weights;
 	}
 
-	private double getUtility(State s, int move) {
-		if (this.weights == null) {
-			System.out.println("PlayerSkeleton: Weight array is not set. Exiting");
-			System.exit(1);
-		}
-
-		sim.copyState(s);
-		sim.makeMove(move);
-		if (sim.hasLost()) {
-			return Double.NEGATIVE_INFINITY;
-		}
-
-		int[] features = sim.getFeaturesArray();
+	/**
+	 * @param width number of first moves to search one piece further, 0 to play greedily
+	 */
+	public void setLookaheadWidth(int width) {
+		this.lookaheadWidth = Math.min(width, StateSimulator2.MAX_MOVES);
+	}
 
-		double utility = 0;
-		for (int i = 0; i < StateSimulator2.NUM_FEATURES; i++){
-			// get linear weighted sum
-			utility += features[i] * weights[i];
+	/**
+	 * Linear weighted sum of every row of a flattened matrix. Kept as a plain loop over contiguous
+	 * rows so that the JIT can vectorize it.
+	 * @param matrix numRows rows of NUM_FEATURES values each
+	 * @param result the utility of each row
+	 */
+	static void multiply(double[] matrix, int numRows, double[] vector, double[] result) {
+		for (int row = 0; row < numRows; row++) {
+			int offset = row * StateSimulator2.NUM_FEATURES;
+			double utility = 0;
+			for (int i = 0; i < StateSimulator2.NUM_FEATURES; i++) {
+				utility += matrix[offset + i] * vector[i];
+			}
+			result[row] = utility;
 		}
-
-		return utility;
 	}
 
 	private static void printFeatures(int[] features) {
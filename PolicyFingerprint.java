@@ -0,0 +1,83 @@
+import java.util.Arrays;
+
+/**
+ * Cheap way to tell that two weight vectors play the same way. Only the argmax of the utilities matters to
+ * PlayerSkeleton, so very different weights often pick exactly the same moves. The fingerprint of weights is a hash
+ * of the moves they pick on a fixed corpus of positions, recorded once from games of REFERENCE_WEIGHTS. Weights
+ * with the same fingerprint are taken to play the same games, which holds for the positions of the corpus only.
+ * <p>
+ * A position is stored as the afterstate features of all its legal moves, so probing it is a single
+ * PlayerSkeleton.multiply() and an argmax, without simulating anything. It is thread-safe once built.
+ */
+public class PolicyFingerprint {
+    /**
+     * weights of the games the positions come from, those of PlayerSkeleton.main()
+     */
+    private static final double[] REFERENCE_WEIGHTS = { -0.66815299 , -0.18275129 , -0.00313774 , -0.61375989 , -0.10106387 , -0.26484914 , -0.09336810 , -0.23320790 };
+
+    /**
+     * one position out of this many moves is recorded, so that the corpus is not made of near-identical boards
+     */
+    private static final int MOVES_PER_POSITION = 4;
+
+    /* afterstate features and losing moves of each position, as given by StateSimulator2.getAfterstateFeatures() */
+    private final double[][] featureMatrices;
+    private final boolean[][] lostMoves;
+
+    /**
+     * plays games with REFERENCE_WEIGHTS until numPositions positions are recorded
+     * @param seed of the pieces of the games, so that the corpus is the same from one run to the next
+     * @param pieceFrequencies of the pieces of the games, see PieceSequence
+     */
+    public PolicyFingerprint(int numPositions, long seed, int[] pieceFrequencies) {
+        featureMatrices = new double[numPositions][];
+        lostMoves = new boolean[numPositions][];
+
+        PieceSequence pieces = new PieceSequence(seed, pieceFrequencies);
+        PlayerSkeleton player = new PlayerSkeleton();
+        player.setWeights(REFERENCE_WEIGHTS);
+        StateSimulator2 sim = new StateSimulator2();
+        double[] featureMatrix = new double[StateSimulator2.MAX_MOVES * StateSimulator2.NUM_FEATURES];
+        boolean[] lost = new boolean[StateSimulator2.MAX_MOVES];
+
+        int numRecorded = 0;
+        while (numRecorded < numPositions) {
+            State s = new State(pieces.split());
+            while (!s.hasLost() && numRecorded < numPositions) {
+                int[][] legalMoves = s.legalMoves();
+                if (s.getTurnNumber() % MOVES_PER_POSITION == 0) {
+                    sim.copyState(s);
+                    int numMoves = sim.getAfterstateFeatures(featureMatrix, lost);
+                    featureMatrices[numRecorded] = Arrays.copyOf(featureMatrix, numMoves * StateSimulator2.NUM_FEATURES);
+                    lostMoves[numRecorded] = Arrays.copyOf(lost, numMoves);
+                    numRecorded++;
+                }
+                s.makeMove(player.pickMove(s, legalMoves));
+            }
+        }
+    }
+
+    /**
+     * @return a hash of the moves weights pick on every position of the corpus, the same way
+     * PlayerSkeleton.pickMove() does when playing greedily
+     */
+    public long fingerprint(double[] weights) {
+        double[] utilities = new double[StateSimulator2.MAX_MOVES];
+        long hash = 0xcbf29ce484222325L; // FNV-1a
+        for (int position = 0; position < featureMatrices.length; position++) {
+            boolean[] lost = lostMoves[position];
+            PlayerSkeleton.multiply(featureMatrices[position], lost.length, weights, utilities);
+
+            int bestMove = 0;
+            double bestUtility = Double.NEGATIVE_INFINITY;
+            for (int move = 0; move < lost.length; move++) {
+                if (!lost[move] && utilities[move] > bestUtility) {
+                    bestMove = move;
+                    bestUtility = utilities[move];
+                }
+            }
+            hash = (hash ^ bestMove) * 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs one of the optimizers on all the processors: java RunOptimizer [abc|ce|cma|cuckoo] [maxEvaluations].
+ * abc runs ABColony as usual. The others score at most maxEvaluations weights, by default as many as the cycles
+ * of one colony, and write the best weights found the same way as ABColony.
+ * <p>
+ * With MULTI_FIDELITY, candidates are first screened on short games (level 3 starting on garbage rows, then
+ * level 3) and only the best half of each stage go on to full games of level 2, see FitnessEvaluator.setStages().
+ * Only ce and cma use it: they rank each population on its own, while cuckoo compares fitness values across
+ * generations, which the rank-only fitness of candidates eliminated early does not allow.
+ */
+public class RunOptimizer {
+    public static long MAX_EVALUATIONS = (long) (ABColony.MAX_CYCLE - 1) * ABColony.COLONY_SIZE;
+
+    public static String WEIGHTS_RESULT_FILE = "weights.out";
+
+    public static boolean MULTI_FIDELITY = true;
+    public static FitnessEvaluator.Stage[] STAGES = {
+            new FitnessEvaluator.Stage(3, 8, 5, 0.5),
+            new FitnessEvaluator.Stage(3, 0, 10, 0.5),
+            new FitnessEvaluator.Stage(2, 0, PlayGame.NUM_GAMES_TO_AVERAGE, 1) };
+
+    public static void main(String[] args) throws IOException {
+        String name = args.length > 0 ? args[0] : "cma";
+        long maxEvaluations = args.length > 1 ? Long.parseLong(args[1]) : MAX_EVALUATIONS;
+        Optimizer optimizer;
+        switch (name) {
+            case "abc":
+                ABColony.main(args);
+                return;
+            case "ce":
+                optimizer = new CrossEntropy();
+                break;
+            case "cma":
+                optimizer = new CMAES();
+                break;
+            case "cuckoo":
+                optimizer = new CuckooSearch();
+                break;
+            default:
+                System.out.println("Usage: java RunOptimizer [abc|ce|cma|cuckoo] [maxEvaluations]");
+                System.exit(-1);
+                return;
+        }
+
+        PlayGame.setLevel(2);
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        System.out.println("# processors available = " + numThreads);
+        ExecutorService es = Executors.newWorkStealingPool(numThreads);
+        FitnessEvaluator evaluator = new FitnessEvaluator(es);
+        if (MULTI_FIDELITY && !(optimizer instanceof CuckooSearch))
+            evaluator.setStages(STAGES);
+        optimizer.optimize(evaluator, maxEvaluations);
+        evaluator.printProgress("Finished " + name);
+        evaluator.shutdown();
+        es.shutdown();
+
+        if (WEIGHTS_RESULT_FILE != null) {
+            BufferedWriter bw = new BufferedWriter(new FileWriter(System.currentTimeMillis() + WEIGHTS_RESULT_FILE));
+            bw.write(evaluator.getBestFitness() + "\n");
+            for (double weight : evaluator.getBestWeights()) {
+                bw.write(Double.toString(weight) + " ");
+            }
+            bw.flush();
+            bw.close();
+        }
+        System.exit(0);
+    }
+}
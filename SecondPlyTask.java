@@ -0,0 +1,82 @@
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Task used to search the second ply of the lookahead concurrently. Places one candidate move of the current piece,
+ * then adds to its utility the expected utility of the best placement of the piece after it, over all the pieces it
+ * could be. The first utility is kept since landing height and eroded cells of the first piece are gone after the second.
+ * <p>
+ * A player keeps its tasks from one move to the next, see reset(), and the result is a plain double, so that the
+ * search does not allocate.
+ */
+public class SecondPlyTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * simulator and buffers of each worker thread, so that tasks never share them
+     */
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private static final class Scratch {
+        final StateSimulator2 sim = new StateSimulator2();
+        final double[] featureMatrix = new double[StateSimulator2.MAX_MOVES * StateSimulator2.NUM_FEATURES];
+        final boolean[] lostMoves = new boolean[StateSimulator2.MAX_MOVES];
+        final double[] utilities = new double[StateSimulator2.MAX_MOVES];
+
+        Scratch() {
+            // the second ply reaches the same boards through different orders of the two pieces
+            sim.setFeatureCache(FeatureCache.forCurrentThread());
+        }
+    }
+
+    private final StateSimulator2 base;
+    private double[] weights;
+
+    /**
+     * the move of the current piece, i.e. base.nextPiece, searched by this task
+     */
+    public int move;
+    private double moveUtility;
+
+    /**
+     * the utility of the move plus that of the best second placement averaged over all pieces, or negative
+     * infinity if some piece cannot be placed without losing. Set once the task is done
+     */
+    public double utility;
+
+    public SecondPlyTask(StateSimulator2 base) {
+        this.base = base;
+    }
+
+    /**
+     * prepares the task to search move, whether it already ran or not
+     */
+    public void reset(double[] weights, int move, double moveUtility) {
+        reinitialize();
+        this.weights = weights;
+        this.move = move;
+        this.moveUtility = moveUtility;
+    }
+
+    @Override
+    protected void compute() {
+        Scratch scratch = SCRATCH.get();
+        StateSimulator2 sim = scratch.sim;
+        sim.copyState(base);
+        sim.makeMove(move);
+
+        double sum = 0;
+        for (int piece = 0; piece < State.N_PIECES; piece++) {
+            sim.nextPiece = piece;
+            int numMoves = sim.getAfterstateFeatures(scratch.featureMatrix, scratch.lostMoves);
+            PlayerSkeleton.multiply(scratch.featureMatrix, numMoves, weights, scratch.utilities);
+
+            double bestUtility = Double.NEGATIVE_INFINITY;
+            for (int secondMove = 0; secondMove < numMoves; secondMove++) {
+                if (!scratch.lostMoves[secondMove])
+                    bestUtility = Math.max(bestUtility, scratch.utilities[secondMove]);
+            }
+            sum += bestUtility;
+        }
+        utility = moveUtility + sum / State.N_PIECES;
+    }
+}
@@ -1,4 +1,5 @@
 import java.awt.Color;
+import java.util.Random;
 
 
 
@@ -19,11 +20,11 @@ public class State {
 	public TLabel label;
 	
 	//current turn
-	private int turn = 0;
-	private int cleared = 0;
+	private long turn = 0;
+	private long cleared = 0;
 	
-	//each square in the grid - 0 means empty - other values mean the turn it was placed
-	private int[][] field = new int[ROWS][COLS];
+	//each row of the grid as a bitmask - bit c set means column c is filled
+	private int[] rows = new int[ROWS];
 	//top row+1 of each column
 	//0 means empty
 	private int[] top = new int[COLS];
@@ -32,6 +33,9 @@ public class State {
 	//number of next piece
 	protected int nextPiece;
 	
+	//where the pieces come from
+	private PieceSequence pieces;
+	
 	
 	
 	//all legal moves - first index is piece type - then a list of 2-length arrays
@@ -84,8 +88,29 @@ public class State {
 		{{2,2,1},{2,3}}
 	};
 	
-	//initialize legalMoves
-	{
+	//a row with every column filled
+	public static final int FULL_ROW = (1 << COLS) - 1;
+	
+	//bitmask of each row of the pieces, anchored at slot 0 [piece ID][orientation][row from bottom]
+	private static int[][][] pRowMasks = new int[N_PIECES][][];
+	
+	//initialize pRowMasks
+	static {
+		for(int i = 0; i < N_PIECES; i++) {
+			pRowMasks[i] = new int[pOrients[i]][];
+			for(int j = 0; j < pOrients[i]; j++) {
+				pRowMasks[i][j] = new int[pHeight[i][j]];
+				for(int c = 0; c < pWidth[i][j]; c++) {
+					for(int h = pBottom[i][j][c]; h < pTop[i][j][c]; h++) {
+						pRowMasks[i][j][h] |= 1 << c;
+					}
+				}
+			}
+		}
+	}
+	
+	//initialize legalMoves, once: they are shared by every state, and games in other threads read them
+	static {
 		//for each piece type
 		for(int i = 0; i < N_PIECES; i++) {
 			//figure number of legal moves
@@ -111,8 +136,8 @@ public class State {
 	}
 	
 	
-	public int[][] getField() {
-		return field;
+	public int[] getRows() {
+		return rows;
 	}
 
 	public int[] getTop() {
@@ -148,11 +173,11 @@ public class State {
 		return lost;
 	}
 	
-	public int getRowsCleared() {
+	public long getRowsCleared() {
 		return cleared;
 	}
 	
-	public int getTurnNumber() {
+	public long getTurnNumber() {
 		return turn;
 	}
 	
@@ -160,13 +185,33 @@ public class State {
 	
 	//constructor
 	public State() {
+		this(new PieceSequence());
+	}
+	
+	//plays the pieces of the given sequence, e.g. a seeded one to replay the same game
+	public State(PieceSequence pieces) {
+		this.pieces = pieces;
 		nextPiece = randomPiece();
 
 	}
 	
+	//fills the bottom numRows rows of an empty board, each with a hole in a random column - shorter games
+	public void addGarbageRows(int numRows, Random rand) {
+		for(int r = 0; r < numRows; r++) {
+			rows[r] = FULL_ROW & ~(1 << rand.nextInt(COLS));
+		}
+		for(int c = 0; c < COLS; c++) {
+			int r = numRows;
+			while(r > 0 && (rows[r-1] & (1 << c)) == 0) {
+				r--;
+			}
+			top[c] = r;
+		}
+	}
+	
 	//random integer, returns 0-6
 	private int randomPiece() {
-		return (int)(Math.random()*N_PIECES);
+		return pieces.nextPiece();
 	}
 	
 
@@ -204,13 +249,10 @@ public class State {
 			return false;
 		}
 
-		//for each column in the piece - fill in the appropriate blocks
-		for(int i = 0; i < pWidth[nextPiece][orient]; i++) {
-			
-			//from bottom to top of brick
-			for(int h = height+pBottom[nextPiece][orient][i]; h < height+pTop[nextPiece][orient][i]; h++) {
-				field[h][i+slot] = turn;
-			}
+		//fill in the rows of the piece - one mask per row
+		int[] masks = pRowMasks[nextPiece][orient];
+		for(int h = 0; h < masks.length; h++) {
+			rows[height+h] |= masks[h] << slot;
 		}
 		
 		//adjust top
@@ -220,31 +262,27 @@ public class State {
 		
 		int rowsCleared = 0;
 		
-		//check for full rows - starting at the top
-		for(int r = height+pHeight[nextPiece][orient]-1; r >= height; r--) {
-			//check all columns in the row
-			boolean full = true;
-			for(int c = 0; c < COLS; c++) {
-				if(field[r][c] == 0) {
-					full = false;
-					break;
-				}
-			}
-			//if the row was full - remove it and slide above stuff down
-			if(full) {
+		//check for full rows - only the rows of the piece can be - and slide the other rows of the piece down over them
+		int end = height+masks.length;
+		for(int r = height; r < end; r++) {
+			if(rows[r] == FULL_ROW)
 				rowsCleared++;
-				cleared++;
-				//for each column
-				for(int c = 0; c < COLS; c++) {
-
-					//slide down all bricks
-					for(int i = r; i < top[c]; i++) {
-						field[i][c] = field[i+1][c];
-					}
-					//lower the top
-					top[c]--;
-					while(top[c]>=1 && field[top[c]-1][c]==0)	top[c]--;
-				}
+			else if(rowsCleared > 0)
+				rows[r-rowsCleared] = rows[r];
+		}
+		
+		if(rowsCleared > 0) {
+			cleared += rowsCleared;
+			//slide the rows above the piece down in one block
+			System.arraycopy(rows, end, rows, end-rowsCleared, ROWS-end);
+			for(int r = ROWS-rowsCleared; r < ROWS; r++) {
+				rows[r] = 0;
+			}
+			
+			//lower the tops - every column was above the cleared rows, but may uncover a hole under them
+			for(int c = 0; c < COLS; c++) {
+				top[c] -= rowsCleared;
+				while(top[c]>=1 && (rows[top[c]-1] & (1 << c))==0)	top[c]--;
 			}
 		}
 	
@@ -270,7 +308,7 @@ public class State {
 				
 		for(int c = 0; c < COLS; c++) {
 			for(int r = 0; r < top[c]; r++) {
-				if(field[r][c] != 0) {
+				if((rows[r] & (1 << c)) != 0) {
 					drawBrick(c,r);
 				}
 			}
@@ -1,3 +1,6 @@
+import java.util.Arrays;
+import java.util.Random;
+
 public class StateSimulator2 {
     public static final int COLS = 10;
     public static final int ROWS = 21;
@@ -6,11 +9,13 @@ public class StateSimulator2 {
     public boolean lost = false;
 
     //current turn
-    public int turn = 0;
-    public int cleared = 0;
+    public long turn = 0;
+    public long cleared = 0;
 
-    //each square in the grid - 0 means empty - other values mean the turn it was placed
-    private int[][] field = new int[ROWS][COLS];
+    //each row of the grid as a bitmask - bit c set means column c is filled
+    private int[] rows = new int[ROWS];
+    //each column of the grid as a bitmask - bit r set means row r is filled
+    private int[] cols = new int[COLS];
     //top row+1 of each column
     //0 means empty
     private int[] top = new int[COLS];
@@ -68,8 +73,44 @@ public class StateSimulator2 {
             {{2, 2, 1}, {2, 3}}
     };
 
-    //initialize legalMoves
-    {
+    //a row with every column filled
+    public static final int FULL_ROW = (1 << COLS) - 1;
+
+    //bitmask of each row of the pieces, anchored at slot 0 [piece ID][orientation][row from bottom]
+    private static int[][][] pRowMasks = new int[N_PIECES][][];
+
+    //initialize pRowMasks
+    static {
+        for (int i = 0; i < N_PIECES; i++) {
+            pRowMasks[i] = new int[pOrients[i]][];
+            for (int j = 0; j < pOrients[i]; j++) {
+                pRowMasks[i][j] = new int[pHeight[i][j]];
+                for (int c = 0; c < pWidth[i][j]; c++) {
+                    for (int h = pBottom[i][j][c]; h < pTop[i][j][c]; h++) {
+                        pRowMasks[i][j][h] |= 1 << c;
+                    }
+                }
+            }
+        }
+    }
+
+    //most legal moves any piece has - the number of rows a feature matrix needs
+    public static final int MAX_MOVES;
+
+    static {
+        int maxMoves = 0;
+        for (int i = 0; i < N_PIECES; i++) {
+            int n = 0;
+            for (int j = 0; j < pOrients[i]; j++) {
+                n += COLS + 1 - pWidth[i][j];
+            }
+            maxMoves = Math.max(maxMoves, n);
+        }
+        MAX_MOVES = maxMoves;
+    }
+
+    //initialize legalMoves, once: they are shared by every simulator, and games in other threads read them
+    static {
         //for each piece type
         for (int i = 0; i < N_PIECES; i++) {
             //figure number of legal moves
@@ -104,11 +145,78 @@ public class StateSimulator2 {
 
     public static final int NUM_FEATURES = 8;
 
-    private int numRowsHadBeenCleared;
+    //rows cleared by the last piece placed
+    private int pieceRowsCleared;
+
+    //running totals of the board features - kept up to date by makeMove
     private int[] features;
 
-    public int[][] getField() {
-        return field;
+    //contribution of each column/row to the running totals, so that a move only revisits what it touched
+    private int[] colHoles = new int[COLS];             // bitmask of the holes in each column
+    private int[] colHoleDepths = new int[COLS];
+    private int[] colTransitions = new int[COLS];
+    private int[] colWells = new int[COLS];
+    private int[] rowTransitions = new int[ROWS];
+    private int[] rowHoleCounts = new int[ROWS];
+
+    //mask of the transitions inside a column - the last row has nothing above it
+    private static final int COL_TRANSITION_MASK = (1 << (ROWS - 1)) - 1;
+
+    //Zobrist hash of the board - one random key per cell, xor-ed together for the filled cells
+    private long hash;
+    private static final long[][] CELL_KEYS = new long[ROWS][COLS];
+    private static final long EMPTY_BOARD_HASH;
+
+    static {
+        Random random = new Random(0x7E7815L);
+        for (int r = 0; r < ROWS; r++) {
+            for (int c = 0; c < COLS; c++) {
+                CELL_KEYS[r][c] = random.nextLong();
+            }
+        }
+        EMPTY_BOARD_HASH = random.nextLong(); // FeatureCache copes with boards that still hash to 0
+    }
+
+    //board features of the boards seen by this thread - null when not caching
+    private FeatureCache cache;
+    //true when the features came from the cache, so the contributions of the columns and rows are those of an earlier board
+    private boolean statsStale;
+
+    //one record per move that can still be undone - the last one is at journalSize - 1
+    private MoveRecord[] journal = new MoveRecord[2];
+    private int journalSize;
+
+    /**
+     * What a move overwrote. Columns are small enough to be saved whole, rows are only saved from rowLo to rowHi.
+     */
+    private static final class MoveRecord {
+        long turn, cleared;
+        int pieceRowsCleared, pieceBase, pieceHeight;
+        long hash;
+        boolean lost;
+        boolean placed;
+        boolean statsStale;
+        int rowLo, rowHi;
+        final int[] pieceRows = new int[4];
+        final int[] features = new int[NUM_FEATURES];
+        final int[] top = new int[COLS];
+        final int[] cols = new int[COLS];
+        final int[] colHoles = new int[COLS];
+        final int[] colHoleDepths = new int[COLS];
+        final int[] colTransitions = new int[COLS];
+        final int[] colWells = new int[COLS];
+        final int[] rows = new int[ROWS];
+        final int[] rowTransitions = new int[ROWS];
+        final int[] rowHoleCounts = new int[ROWS];
+    }
+
+    //cells of the last piece placed - the rows it still occupies after any clears, starting at pieceBase
+    private int[] pieceRows = new int[4];
+    private int pieceBase;
+    private int pieceHeight;
+
+    public int[] getRows() {
+        return rows;
     }
 
     public int[] getTop() {
@@ -119,11 +227,11 @@ public class StateSimulator2 {
         return lost;
     }
 
-    public int getRowsCleared() {
+    public long getRowsCleared() {
         return cleared;
     }
 
-    public int getTurnNumber() {
+    public long getTurnNumber() {
         return turn;
     }
 
@@ -132,22 +240,45 @@ public class StateSimulator2 {
     }
 
     public void copyState(State startState) {
-        copyField(startState.getField(), field);
+        System.arraycopy(startState.getRows(), 0, rows, 0, ROWS);
         this.nextPiece = startState.nextPiece;
         System.arraycopy(startState.getTop(), 0, top, 0, startState.getTop().length);
         this.turn = startState.getTurnNumber();
         this.lost = false;
-        this.numRowsHadBeenCleared = this.cleared = startState.getRowsCleared();
+        this.cleared = startState.getRowsCleared();
+        this.pieceHeight = 0;
+        this.pieceRowsCleared = 0;
+        this.journalSize = 0;
+        this.hash = hashRows();
+        rebuildFeatures();
     }
 
     /**
-     * @param source      the location from which to copy
-     * @param destination the location to copy the source
+     * copies the board and its features from another simulator, e.g. to search from it on another thread
+     * @param other the simulator to copy, which is only read
      */
-    private void copyField(int[][] source, int[][] destination) {
-        for (int i = 0; i < source.length; i++) {
-            System.arraycopy(source[i], 0, destination[i], 0, source[0].length);
-        }
+    public void copyState(StateSimulator2 other) {
+        System.arraycopy(other.rows, 0, rows, 0, ROWS);
+        System.arraycopy(other.cols, 0, cols, 0, COLS);
+        System.arraycopy(other.top, 0, top, 0, COLS);
+        this.nextPiece = other.nextPiece;
+        this.turn = other.turn;
+        this.lost = other.lost;
+        this.cleared = other.cleared;
+        this.pieceRowsCleared = other.pieceRowsCleared;
+        this.pieceBase = other.pieceBase;
+        this.pieceHeight = other.pieceHeight;
+        System.arraycopy(other.pieceRows, 0, pieceRows, 0, pieceRows.length);
+        System.arraycopy(other.features, 0, features, 0, NUM_FEATURES);
+        System.arraycopy(other.colHoles, 0, colHoles, 0, COLS);
+        System.arraycopy(other.colHoleDepths, 0, colHoleDepths, 0, COLS);
+        System.arraycopy(other.colTransitions, 0, colTransitions, 0, COLS);
+        System.arraycopy(other.colWells, 0, colWells, 0, COLS);
+        System.arraycopy(other.rowTransitions, 0, rowTransitions, 0, ROWS);
+        System.arraycopy(other.rowHoleCounts, 0, rowHoleCounts, 0, ROWS);
+        this.hash = other.hash;
+        this.statsStale = other.statsStale;
+        this.journalSize = 0;
     }
 
     //make a move based on the move index - its order in the legalMoves list
@@ -160,8 +291,9 @@ public class StateSimulator2 {
         makeMove(move[ORIENT], move[SLOT]);
     }
 
-    //returns false if you lose - true otherwise
+    //returns false if you lose - true otherwise. Can be taken back with undoMove()
     public boolean makeMove(int orient, int slot) {
+        MoveRecord record = pushRecord();
         turn++;
         //height if the first column makes contact
         int height = top[slot] - pBottom[nextPiece][orient][0];
@@ -183,48 +315,112 @@ public class StateSimulator2 {
             return false;
         }
 
-        //for each column in the piece - fill in the appropriate blocks
-        for (int i = 0; i < pWidth[nextPiece][orient]; i++) {
-
-            //from bottom to top of brick
-            for (int h = height + pBottom[nextPiece][orient][i]; h < height + pTop[nextPiece][orient][i]; h++) {
-                field[h][i + slot] = turn;
+        //the piece changes the rows from the lowest top it lands on up to the highest top after it
+        int width = pWidth[nextPiece][orient];
+        int rowLo = height;
+        int rowHi = height + pHeight[nextPiece][orient];
+        for (int c = 0; c < COLS; c++) {
+            if (c >= slot && c < slot + width)
+                rowLo = Math.min(rowLo, top[c]);
+            rowHi = Math.max(rowHi, top[c]);
+        }
+        if (statsStale) {
+            //moving on from a board whose features came from the cache - the move that led here saved the older ones
+            rebuildFeatures();
+            statsStale = false;
+        }
+        saveBoard(record, rowLo, Math.min(rowHi + 1, ROWS));
+
+        //fill in the rows of the piece - one mask per row
+        int[] masks = pRowMasks[nextPiece][orient];
+        for (int h = 0; h < masks.length; h++) {
+            rows[height + h] |= masks[h] << slot;
+            pieceRows[h] = masks[h] << slot;
+            for (int cells = pieceRows[h]; cells != 0; cells &= cells - 1) {
+                hash ^= CELL_KEYS[height + h][Integer.numberOfTrailingZeros(cells)];
             }
         }
+        pieceBase = height;
+        pieceHeight = masks.length;
 
-        //adjust top
-        for (int c = 0; c < pWidth[nextPiece][orient]; c++) {
+        //fill in the columns of the piece and adjust top
+        for (int c = 0; c < width; c++) {
+            int bottom = height + pBottom[nextPiece][orient][c];
             top[slot + c] = height + pTop[nextPiece][orient][c];
+            cols[slot + c] |= (1 << top[slot + c]) - (1 << bottom);
         }
 
         int rowsCleared = 0;
+        int clearedMask = 0;
+
+        //check for full rows - only the rows of the piece can be - and slide the other rows of the piece down over them
+        for (int h = 0; h < masks.length; h++) {
+            int r = height + h;
+            if (rows[r] == FULL_ROW) {
+                rowsCleared++;
+                clearedMask |= 1 << r;
+            } else if (rowsCleared > 0) {
+                rows[r - rowsCleared] = rows[r];
+                pieceRows[h - rowsCleared] = pieceRows[h];
+            }
+        }
+
+        if (rowsCleared > 0) {
+            cleared += rowsCleared;
+            //the cleared rows no longer hold any of the piece
+            pieceHeight -= rowsCleared;
+
+            //slide the rows above the piece down in one block
+            int end = height + masks.length;
+            System.arraycopy(rows, end, rows, end - rowsCleared, ROWS - end);
+            for (int r = ROWS - rowsCleared; r < ROWS; r++) {
+                rows[r] = 0;
+            }
 
-        //check for full rows - starting at the top
-        for (int r = height + pHeight[nextPiece][orient] - 1; r >= height; r--) {
-            //check all columns in the row
-            boolean full = true;
+            //drop the cleared rows from every column, the highest first, and lower the tops
             for (int c = 0; c < COLS; c++) {
-                if (field[r][c] == 0) {
-                    full = false;
-                    break;
+                int col = cols[c];
+                for (int rowsLeft = clearedMask; rowsLeft != 0; ) {
+                    int r = 31 - Integer.numberOfLeadingZeros(rowsLeft);
+                    rowsLeft ^= 1 << r;
+                    int below = (1 << r) - 1;
+                    col = (col & below) | ((col >>> 1) & ~below);
                 }
+                cols[c] = col;
+                top[c] = 32 - Integer.numberOfLeadingZeros(col);
             }
-            //if the row was full - remove it and slide above stuff down
-            if (full) {
-                rowsCleared++;
-                cleared++;
-                //for each column
-                for (int c = 0; c < COLS; c++) {
+        }
 
-                    //slide down all bricks
-                    for (int i = r; i < top[c]; i++) {
-                        field[i][c] = field[i + 1][c];
-                    }
-                    //lower the top
-                    top[c]--;
-                    while (top[c] >= 1 && field[top[c] - 1][c] == 0) top[c]--;
-                }
+        pieceRowsCleared = rowsCleared;
+        if (rowsCleared > 0) {
+            hash = hashRows();
+            //every row above the clear has moved, and holes below it may have opened up, so the stats of every row
+            //change - now or, after a cache hit, when the next move rebuilds them - and all of them must be undone
+            saveRows(record, 0, record.rowLo);
+            record.rowLo = 0;
+        }
+
+        if (cache != null && cache.get(hash, features)) {
+            //the features are known, so the contributions are not worth updating until the next move
+            statsStale = true;
+        } else if (rowsCleared > 0) {
+            rebuildFeatures();
+            if (cache != null)
+                cache.put(hash, features);
+        } else {
+            //only the columns and rows under the piece (and their right/upper neighbours) changed
+            for (int c = slot; c < slot + width; c++) {
+                updateColumn(c);
+            }
+            updateColTransitions(slot + width);
+            for (int c = Math.max(slot - 1, 0); c <= Math.min(slot + width, COLS - 1); c++) {
+                updateWell(c);
             }
+            for (int r = height; r <= height + masks.length; r++) {
+                updateRowTransitions(r);
+            }
+            if (cache != null)
+                cache.put(hash, features);
         }
 
         return true;
@@ -235,171 +431,266 @@ public class StateSimulator2 {
         return this.features;
     }
 
-    private void computeFeatures() {
-        getFeature0to5();
-        getColTransitions();
-        getRowTransitions();
-        getCumulativeWells();
+    /**
+     * Tries every legal move of nextPiece and writes the features of each afterstate in one pass.
+     * The matrix is flattened row by row, i.e. feature i of move m is at m * NUM_FEATURES + i.
+     * @param featureMatrix at least MAX_MOVES * NUM_FEATURES long
+     * @param lostMoves set to true for the moves that lose the game, whose features are left untouched
+     * @return the number of legal moves, i.e. rows written
+     */
+    public int getAfterstateFeatures(double[] featureMatrix, boolean[] lostMoves) {
+        int[][] moves = legalMoves[nextPiece];
+        for (int move = 0; move < moves.length; move++) {
+            makeMove(moves[move][ORIENT], moves[move][SLOT]);
+            lostMoves[move] = lost;
+            if (!lost) {
+                computeFeatures();
+                int offset = move * NUM_FEATURES;
+                for (int i = 0; i < NUM_FEATURES; i++) {
+                    featureMatrix[offset + i] = features[i];
+                }
+            }
+            undoMove();
+        }
+        return moves.length;
     }
 
-    private void getFeature0to5() {
-        // for number of holes
-        int numHoles = 0;
-
-        // for sum of hole depths
-        int sumHoleDepth = 0;
-
-        // for number of rows with holes
-        boolean[] rowHasHoles = new boolean[State.ROWS];
-
-        // for column transition
-        int transitionCount = 0;
-        boolean isFilled = true; // off-by-one, even if wrong
-
+    /**
+     * The board features are already up to date, only the ones describing the last piece are left
+     */
+    private void computeFeatures() {
         // for use in landingheight
         int maxLandingHeight = 0;
-        int thisTurn = getTurnNumber();
-        if (thisTurn < 0) {
-            System.out.println("Integer overflow");
-            System.exit(1);
-        }
 
         // for use in erodedPieceCells
         // all pieces consists of 4 blocks
         int totalSize = 4;
         int numBlocksLeft = 0;
 
-        for (int col = 0; col < State.COLS; col++) {
-            // for each column, start with the top cell
-            int topRow = top[col] - 1;
-
-            if (topRow >= 0 && field[topRow][col] == thisTurn) // field[row][col] = turn, if not empty
-                maxLandingHeight = Math.max(maxLandingHeight, topRow);
-
-            int numHolesForColumn = 0;
-            for (int row = topRow - 1; row >= 0; row--) {
-                if (field[row][col] == 0) {
-                    sumHoleDepth += (topRow - numHolesForColumn - row);
-                    numHolesForColumn++;
-                    rowHasHoles[row] = true;
-                    if (isFilled) {
-                        transitionCount++;
-                        isFilled = false;
-                    }
-                } else if (field[row][col] == thisTurn) {
+        // the piece cells left on the board, except those on top of their column
+        for (int i = 0; i < pieceHeight; i++) {
+            int row = pieceBase + i;
+            for (int cells = pieceRows[i]; cells != 0; cells &= cells - 1) {
+                int col = Integer.numberOfTrailingZeros(cells);
+                if (top[col] - 1 == row)
+                    maxLandingHeight = Math.max(maxLandingHeight, row);
+                else
                     numBlocksLeft++;
-                    if (!isFilled) {
-                        transitionCount++;
-                        isFilled = true;
-                    }
-                } else {
-                    if (!isFilled) {
-                        transitionCount++;
-                        isFilled = true;
-                    }
-                }
             }
-            numHoles += numHolesForColumn;
         }
 
-        features[INDEX_NUMHOLES] = numHoles;
-        features[INDEX_HOLE_DEPTH] = sumHoleDepth;
-        features[INDEX_COL_TRANSITIONS] = transitionCount;
         features[INDEX_LANDING_HEIGHT] = maxLandingHeight;
 
-        features[INDEX_NUM_ROWS_WITH_HOLE] = 0;
-        for (boolean rowHasHole : rowHasHoles) {
-            if (rowHasHole)
-                features[INDEX_NUM_ROWS_WITH_HOLE] += 1;
-        }
+        features[INDEX_ERODED_PIECE_CELLS] = pieceRowsCleared * (totalSize - numBlocksLeft);
+    }
 
-        int numRowsCleared = getRowsCleared() - numRowsHadBeenCleared;
-        features[INDEX_ERODED_PIECE_CELLS] = numRowsCleared * (totalSize - numBlocksLeft);
-    }
-
-    private void getColTransitions() {
-//        int maxHeight = features[INDEX_ROW_TRANSITIONS]; // this is just a hack to save a scan of array
-//        int transitionCount = 0;
-//        boolean isFilled = field[maxHeight][0] == 1;
-//
-//        for (int col = 0; col < State.COLS; col++) {
-//            for (int row = 0; row <= maxHeight; row++) {
-//                if (field[row][col] == 0) {
-//                    if (isFilled)
-//                        transitionCount += 1;
-//                    isFilled = false;
-//                } else {
-//                    if (!isFilled)
-//                        transitionCount += 1;
-//                    isFilled = true;
-//                }
-//            }
-//        }
-//        features[INDEX_ROW_TRANSITIONS] = transitionCount;
-        boolean isFilled = field[0][0] > 0;
-        int transitionCount = 0;
-        for (int col = 0; col < COLS; col++) {
-            for (int row = 0; row < ROWS; row++) {
-                if (field[row][col] == 0) {
-                    if (isFilled) {
-                        transitionCount += 1;
-                        isFilled = false;
-                    }
-                } else {
-                    if (!isFilled) {
-                        transitionCount += 1;
-                        isFilled = true;
-                    }
-                }
-            }
-        }
+    /**
+     * takes back the last move that has not been undone yet, restoring only what it changed
+     */
+    public void undoMove() {
+        MoveRecord record = journal[--journalSize];
+        turn = record.turn;
+        cleared = record.cleared;
+        lost = record.lost;
+        if (!record.placed)
+            return;
+
+        hash = record.hash;
+        statsStale = record.statsStale;
+        pieceRowsCleared = record.pieceRowsCleared;
+        pieceBase = record.pieceBase;
+        pieceHeight = record.pieceHeight;
+        System.arraycopy(record.pieceRows, 0, pieceRows, 0, pieceRows.length);
+        System.arraycopy(record.features, 0, features, 0, NUM_FEATURES);
+        System.arraycopy(record.top, 0, top, 0, COLS);
+        System.arraycopy(record.cols, 0, cols, 0, COLS);
+        System.arraycopy(record.colHoles, 0, colHoles, 0, COLS);
+        System.arraycopy(record.colHoleDepths, 0, colHoleDepths, 0, COLS);
+        System.arraycopy(record.colTransitions, 0, colTransitions, 0, COLS);
+        System.arraycopy(record.colWells, 0, colWells, 0, COLS);
+
+        int length = record.rowHi - record.rowLo;
+        System.arraycopy(record.rows, record.rowLo, rows, record.rowLo, length);
+        System.arraycopy(record.rowTransitions, record.rowLo, rowTransitions, record.rowLo, length);
+        System.arraycopy(record.rowHoleCounts, record.rowLo, rowHoleCounts, record.rowLo, length);
+    }
 
-        features[INDEX_COL_TRANSITIONS] = transitionCount;
-    }
-
-    private void getRowTransitions() {
-        boolean isFilled = field[0][0] > 0;
-        int transitionCount = 0;
-        for (int row = 0; row < ROWS; row++) {
-            for (int col = 0; col < COLS; col++) {
-                if (field[row][col] == 0) {
-                    if (isFilled)
-                        transitionCount += 1;
-                    isFilled = false;
-                } else {
-                    if (!isFilled)
-                        transitionCount += 1;
-                    isFilled = true;
-                }
+    private MoveRecord pushRecord() {
+        if (journalSize == journal.length)
+            journal = Arrays.copyOf(journal, journalSize * 2);
+        if (journal[journalSize] == null)
+            journal[journalSize] = new MoveRecord();
+        MoveRecord record = journal[journalSize++];
+        record.turn = turn;
+        record.cleared = cleared;
+        record.lost = lost;
+        record.placed = false;
+        return record;
+    }
+
+    private void saveBoard(MoveRecord record, int rowLo, int rowHi) {
+        record.placed = true;
+        record.hash = hash;
+        record.statsStale = statsStale;
+        record.pieceRowsCleared = pieceRowsCleared;
+        record.pieceBase = pieceBase;
+        record.pieceHeight = pieceHeight;
+        System.arraycopy(pieceRows, 0, record.pieceRows, 0, pieceRows.length);
+        System.arraycopy(features, 0, record.features, 0, NUM_FEATURES);
+        System.arraycopy(top, 0, record.top, 0, COLS);
+        System.arraycopy(cols, 0, record.cols, 0, COLS);
+        System.arraycopy(colHoles, 0, record.colHoles, 0, COLS);
+        System.arraycopy(colHoleDepths, 0, record.colHoleDepths, 0, COLS);
+        System.arraycopy(colTransitions, 0, record.colTransitions, 0, COLS);
+        System.arraycopy(colWells, 0, record.colWells, 0, COLS);
+        record.rowLo = rowLo;
+        record.rowHi = rowHi;
+        saveRows(record, rowLo, rowHi);
+    }
+
+    private void saveRows(MoveRecord record, int rowLo, int rowHi) {
+        int length = rowHi - rowLo;
+        System.arraycopy(rows, rowLo, record.rows, rowLo, length);
+        System.arraycopy(rowTransitions, rowLo, record.rowTransitions, rowLo, length);
+        System.arraycopy(rowHoleCounts, rowLo, record.rowHoleCounts, rowLo, length);
+    }
+
+    /**
+     * @return the Zobrist hash of the board, identical for identical boards whatever moves led to them
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * @return the feature cache of this simulator, or null if it does not cache
+     */
+    public FeatureCache getFeatureCache() {
+        return cache;
+    }
+
+    /**
+     * Caching only pays off when boards repeat, as in a lookahead. Greedy play almost never sees a board twice.
+     * @param cache usually FeatureCache.forCurrentThread(), as the simulator must only be used by that thread.
+     *              null to stop caching
+     */
+    public void setFeatureCache(FeatureCache cache) {
+        this.cache = cache;
+    }
+
+    private long hashRows() {
+        long boardHash = EMPTY_BOARD_HASH;
+        for (int r = 0; r < ROWS; r++) {
+            for (int cells = rows[r]; cells != 0; cells &= cells - 1) {
+                boardHash ^= CELL_KEYS[r][Integer.numberOfTrailingZeros(cells)];
             }
         }
-        features[INDEX_ROW_TRANSITIONS] = transitionCount;
+        return boardHash;
     }
 
-    private void getCumulativeWells() {
-        int sumWellDepths = 0;
-        for (int col = 1; col < top.length - 1; col++) {
-            if (top[col - 1] > top[col] && top[col] < top[col + 1]) {
-                int depth = Math.min(top[col - 1] - top[col], top[col + 1] - top[col]);
-                int arithSeries = (depth * (depth+1)) / 2;
-                sumWellDepths += arithSeries;
+    /**
+     * recomputes the board features from scratch, after a copy or a row clear
+     */
+    private void rebuildFeatures() {
+        for (int c = 0; c < COLS; c++) {
+            int column = 0;
+            for (int r = 0; r < top[c]; r++) {
+                column |= (rows[r] >>> c & 1) << r;
             }
+            cols[c] = column;
+            colHoles[c] = colHoleDepths[c] = colTransitions[c] = colWells[c] = 0;
+        }
+        for (int r = 0; r < ROWS; r++) {
+            rowTransitions[r] = rowHoleCounts[r] = 0;
+        }
+        for (int i = 0; i < NUM_FEATURES; i++) {
+            features[i] = 0;
         }
 
-        // check left- and right-most column, treating the wall as block of maxHeight.
-        if (top[0] < top[1]) {
-            int depth = top[1] - top[0];
-            int arithSeries = (depth * (depth+1)) / 2;
-            sumWellDepths += arithSeries;
+        for (int c = 0; c < COLS; c++) {
+            updateColumn(c);
+            updateWell(c);
         }
+        for (int r = 0; r < ROWS; r++) {
+            updateRowTransitions(r);
+        }
+    }
 
-        if (top[top.length - 1] < top[top.length - 2]) {
-            int depth = (top[top.length - 2] - top[top.length - 1]);
-            int arithSeries = (depth * (depth+1)) / 2;
-            sumWellDepths += arithSeries;
+    /**
+     * recomputes the holes, hole depths and transitions of a column and applies the difference to the totals
+     */
+    private void updateColumn(int col) {
+        int column = cols[col];
+        int holes = ~column & ((1 << top[col]) - 1);
+
+        // each hole is as deep as the number of full cells above it
+        int holeDepth = 0;
+        for (int h = holes; h != 0; h &= h - 1) {
+            holeDepth += Integer.bitCount(column >>> (Integer.numberOfTrailingZeros(h) + 1));
         }
 
-        features[INDEX_CUMULATIVE_WELLS] = sumWellDepths;
+        // a row has holes as long as one of its columns has one there
+        for (int changed = holes ^ colHoles[col]; changed != 0; changed &= changed - 1) {
+            int row = Integer.numberOfTrailingZeros(changed);
+            if ((holes & (1 << row)) != 0) {
+                if (rowHoleCounts[row]++ == 0)
+                    features[INDEX_NUM_ROWS_WITH_HOLE]++;
+            } else {
+                if (--rowHoleCounts[row] == 0)
+                    features[INDEX_NUM_ROWS_WITH_HOLE]--;
+            }
+        }
+
+        features[INDEX_NUMHOLES] += Integer.bitCount(holes) - Integer.bitCount(colHoles[col]);
+        features[INDEX_HOLE_DEPTH] += holeDepth - colHoleDepths[col];
+        colHoles[col] = holes;
+        colHoleDepths[col] = holeDepth;
+
+        updateColTransitions(col);
+        updateColTransitions(col + 1);
+    }
+
+    /**
+     * columns are scanned one after another, so the top cell of a column is followed by the bottom of the next
+     */
+    private void updateColTransitions(int col) {
+        if (col >= COLS)
+            return;
+        int column = cols[col];
+        int transitions = Integer.bitCount((column ^ (column >>> 1)) & COL_TRANSITION_MASK);
+        if (col > 0)
+            transitions += ((cols[col - 1] >>> (ROWS - 1)) ^ column) & 1;
+        features[INDEX_COL_TRANSITIONS] += transitions - colTransitions[col];
+        colTransitions[col] = transitions;
+    }
+
+    /**
+     * rows are scanned one after another, so the last cell of a row is followed by the first of the next
+     */
+    private void updateRowTransitions(int row) {
+        if (row >= ROWS)
+            return;
+        int cells = rows[row];
+        int transitions = Integer.bitCount((cells ^ (cells >>> 1)) & (FULL_ROW >>> 1));
+        if (row > 0)
+            transitions += ((rows[row - 1] >>> (COLS - 1)) ^ cells) & 1;
+        features[INDEX_ROW_TRANSITIONS] += transitions - rowTransitions[row];
+        rowTransitions[row] = transitions;
+    }
+
+    /**
+     * the walls count as columns of max height
+     */
+    private void updateWell(int col) {
+        int left = col == 0 ? ROWS : top[col - 1];
+        int right = col == COLS - 1 ? ROWS : top[col + 1];
+        int wellDepth = 0;
+        if (left > top[col] && top[col] < right) {
+            int depth = Math.min(left, right) - top[col];
+            wellDepth = (depth * (depth + 1)) / 2;
+        }
+        features[INDEX_CUMULATIVE_WELLS] += wellDepth - colWells[col];
+        colWells[col] = wellDepth;
     }
 
     private static void getNumHoles() {
@@ -0,0 +1,71 @@
+/**
+ * Estimates the mean number of lines cleared per game from games stopped after a move budget, some of them before
+ * they were lost. The lines a game clears before it is lost are taken to be exponentially distributed, as the
+ * chance of losing is about the same at every line once the board has settled. A stopped game then tells only that
+ * it would have cleared more lines than it did, and the maximum likelihood estimate of the mean is the total number
+ * of lines cleared by all the games over the number of games lost.
+ * <p>
+ * Its precision depends on the number of games lost only: the confidence interval is mean * exp(+-z / sqrt(lost)).
+ * It is thread-safe.
+ */
+public class SurvivalEstimate {
+    /**
+     * the confidence intervals are at 1 - ALPHA, and Z is the matching quantile of the normal distribution
+     */
+    public static final double ALPHA = 0.05;
+    public static final double Z = 1.96;
+
+    private double totalLines;
+    private int numGames;
+    private int numLost;
+
+    /**
+     * records a game
+     * @param lines number of lines it cleared
+     * @param lost false if it was stopped before it was lost
+     */
+    public synchronized void add(double lines, boolean lost) {
+        totalLines += lines;
+        numGames++;
+        if (lost)
+            numLost++;
+    }
+
+    /**
+     * @return the estimated mean lines cleared per game, infinity while no game was lost
+     */
+    public synchronized double getMean() {
+        return totalLines / numLost;
+    }
+
+    /**
+     * @return the lower bound of the confidence interval of the mean. While no game was lost, that of the one-sided
+     * interval at the same level: the mean is above it unless games this good lose rarely by chance
+     */
+    public synchronized double getLowerBound() {
+        if (numLost == 0)
+            return totalLines / -Math.log(ALPHA / 2);
+        return getMean() * Math.exp(-Z / Math.sqrt(numLost));
+    }
+
+    /**
+     * @return the upper bound of the confidence interval of the mean, infinity while no game was lost
+     */
+    public synchronized double getUpperBound() {
+        return getMean() * Math.exp(Z / Math.sqrt(numLost));
+    }
+
+    public synchronized int getNumGames() {
+        return numGames;
+    }
+
+    public synchronized int getNumLost() {
+        return numLost;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%.1f lines per game, 95%% CI [%.1f, %.1f], %d of %d games lost", getMean(),
+                getLowerBound(), getUpperBound(), numLost, numGames);
+    }
+}
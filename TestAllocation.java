@@ -0,0 +1,64 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * Checks that greedy play does not allocate once the game has started: java TestAllocation. Plays warm-up games so
+ * that the JIT has compiled the move loop, then counts the bytes the thread allocates over the moves of one game.
+ * Exits with 1 if any move allocated.
+ */
+public class TestAllocation {
+    private static final int NUM_WARM_UP_GAMES = 5;
+
+    /**
+     * moves after which a game stops, so that strong weights do not play for hours
+     */
+    private static final int MAX_MOVES = 200000;
+
+    private static final long SEED = 42;
+
+    private static double[] WEIGHTS = { -0.66815299 , -0.18275129 , -0.00313774 , -0.61375989 , -0.10106387 , -0.26484914 , -0.09336810 , -0.23320790 };
+
+    public static void main(String[] args) {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            System.out.println("TestAllocation: this JVM does not count allocated bytes. Skipping");
+            System.exit(0);
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        PlayerSkeleton player = new PlayerSkeleton();
+        player.setWeights(WEIGHTS);
+        PieceSequence pieces = new PieceSequence(SEED, PieceSequence.withSZBias(2));
+        for (int i = 0; i < NUM_WARM_UP_GAMES; i++) {
+            playGame(player, new State(pieces.split()));
+        }
+
+        State s = new State(pieces.split());
+        // the bytes the measurement itself allocates, if any
+        long overhead = -threads.getThreadAllocatedBytes(threadId);
+        overhead += threads.getThreadAllocatedBytes(threadId);
+
+        long startBytes = threads.getThreadAllocatedBytes(threadId);
+        long moves = playGame(player, s);
+        long bytes = threads.getThreadAllocatedBytes(threadId) - startBytes - overhead;
+
+        double bytesPerMove = (double) bytes / moves;
+        System.out.printf("%d moves, %d bytes allocated, %.3f bytes per move\n", moves, bytes, bytesPerMove);
+        System.exit(bytesPerMove > 0 ? 1 : 0);
+    }
+
+    /**
+     * plays greedily till the game is lost or MAX_MOVES moves were made
+     * @return the number of moves made
+     */
+    private static long playGame(PlayerSkeleton player, State s) {
+        long moves = 0;
+        while (!s.hasLost() && moves < MAX_MOVES) {
+            s.makeMove(player.pickMove(s, s.legalMoves()));
+            moves++;
+        }
+        return moves;
+    }
+}
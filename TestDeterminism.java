@@ -0,0 +1,48 @@
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks that an evaluation scores the same whether its games are played one after the other or spread over
+ * threads: java TestDeterminism. For each seed, plays the games of the same weights with call() and with
+ * callSplit(), each on a fresh PlayGame, and compares the score of every game. Exits with 1 on any difference.
+ */
+public class TestDeterminism {
+    private static final int NUM_SEEDS = 5;
+    private static final int NUM_GAMES = 16;
+    private static final int NUM_THREADS = 8;
+
+    /**
+     * moves after which a game stops, so that strong weights do not play for hours
+     */
+    private static final int MOVE_BUDGET = 20000;
+
+    private static double[] WEIGHTS = { -0.66815299 , -0.18275129 , -0.00313774 , -0.61375989 , -0.10106387 , -0.26484914 , -0.09336810 , -0.23320790 };
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService es = Executors.newFixedThreadPool(NUM_THREADS);
+        int mismatches = 0;
+        for (long seed = 1; seed <= NUM_SEEDS; seed++) {
+            // split first, so that the threads of es are the first to build the shared tables
+            PlayGame split = newGame(seed);
+            double splitFitness = split.callSplit(es);
+            PlayGame serial = newGame(seed);
+            double serialFitness = serial.call();
+
+            boolean same = serialFitness == splitFitness && Arrays.equals(serial.getScores(), split.getScores());
+            System.out.printf("seed %d: call() %.1f, callSplit() %.1f%s\n", seed, serialFitness, splitFitness,
+                    same ? "" : ", scores differ");
+            if (!same)
+                mismatches++;
+        }
+        es.shutdown();
+        System.exit(mismatches > 0 ? 1 : 0);
+    }
+
+    private static PlayGame newGame(long seed) {
+        PlayGame game = new PlayGame(WEIGHTS, 0, 0, seed);
+        game.setNumGames(NUM_GAMES);
+        game.setMoveBudget(MOVE_BUDGET, new SurvivalEstimate());
+        return game;
+    }
+}
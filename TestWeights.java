@@ -11,6 +11,10 @@ import java.util.concurrent.*;
 /**
  * A class to test the weights given by playing the game multiple times and retrieve the average score.
  * Runs the games in parallel to reduce running time.
+ * <p>
+ * java TestWeights [moveBudget] stops each game after moveBudget moves, and estimates the average score and its
+ * confidence interval from the stopped games, see SurvivalEstimate. It is only as precise as the number of games
+ * lost, but no game runs for hours.
  */
 public class TestWeights {
     private static int NUM_THREADS;
@@ -20,9 +24,16 @@ public class TestWeights {
 
     private static String WEIGHTS_FILE = "weights.out";
 
+    /**
+     * number of moves after which each game stops, 0 to play them till they are lost
+     */
+    private static int MOVE_BUDGET = 0;
+
     private static double[] scores = new double[NUM_GAMES_TO_PLAY];
 
     public static void main (String[] args) throws InterruptedException, ExecutionException, IOException {
+        if (args.length > 0)
+            MOVE_BUDGET = Integer.parseInt(args[0]);
         NUM_THREADS = Runtime.getRuntime().availableProcessors();
 
         System.out.println("# processors available = " + NUM_THREADS);
@@ -42,8 +53,13 @@ public class TestWeights {
     private static void runGameWith(double[] weights) throws InterruptedException, ExecutionException {
         tasks = new ArrayList<>(NUM_GAMES_TO_PLAY);
         double currentTime = System.currentTimeMillis();
-        for (int i = 0; i < NUM_GAMES_TO_PLAY; i++)
-            tasks.add(new PlayGame(weights));
+        SurvivalEstimate survival = new SurvivalEstimate();
+        for (int i = 0; i < NUM_GAMES_TO_PLAY; i++) {
+            PlayGame game = new PlayGame(weights);
+            if (MOVE_BUDGET > 0)
+                game.setMoveBudget(MOVE_BUDGET, survival);
+            tasks.add(game);
+        }
 
         List<Future<Double>> results = es.invokeAll(tasks);
         int i = 0;
@@ -51,6 +67,13 @@ public class TestWeights {
             scores[i] = result.get();
             i++;
         }
+        if (MOVE_BUDGET > 0) {
+            // the results are the estimates of the games done so far, not scores to average
+            double timeTaken = System.currentTimeMillis() - currentTime;
+            System.out.printf("\nTime taken = %.5f seconds\n", timeTaken / 1000);
+            System.out.println("Estimate = " + survival);
+            return;
+        }
 
         double endTime = System.currentTimeMillis();
 